@@ -4,10 +4,12 @@ import me.draconia.chat.ChatLib;
 import me.draconia.chat.client.gui.FormMain;
 import me.draconia.chat.client.otr.OTRChatManager;
 import me.draconia.chat.client.types.ClientUser;
+import me.draconia.chat.net.TextCompression;
 import me.draconia.chat.net.packets.Packet;
 import me.draconia.chat.net.packets.PacketLoginRequest;
 import me.draconia.chat.net.packets.PacketMessageToServer;
 import me.draconia.chat.types.Message;
+import me.draconia.chat.types.TextMessage;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
@@ -28,6 +30,7 @@ public class ClientLib {
 
 	public static boolean ALWAYS_OTR = true;
 	public static boolean ENABLE_AUTORECONNECT = false;
+	public static boolean ENABLE_STREAM_COMPRESSION = true;
 
 	public static void setPassword(String password) {
 		myPassord = password;
@@ -39,6 +42,15 @@ public class ClientLib {
 
 	public static ClientUser myUser;
 
+	//Lets the next login take over the session of the last one, if it is for the same login, see PacketLoginResponse
+	private static byte[] resumeToken = new byte[0];
+	private static String resumeLogin = null;
+
+	protected static void setResumeToken(byte[] token) {
+		resumeToken = token;
+		resumeLogin = myLogin;
+	}
+
 	public static void sendEncryptableMessage(Message message, boolean showReceived) {
 		sendEncryptableMessage(message, null, showReceived);
 	}
@@ -75,10 +87,14 @@ public class ClientLib {
 
 	public static void sendMessage(Message message, ChannelFutureListener channelFutureListener, boolean showReceived) {
 		message.from = myUser;
+		if (message instanceof TextMessage) {
+			TextMessage textMessage = (TextMessage) message;
+			textMessage.compressContents = textMessage.content.length() >= TextCompression.MIN_COMPRESS_LENGTH;
+		}
 		PacketMessageToServer packetMessage = new PacketMessageToServer();
 		packetMessage.message = message;
 
-		ChannelFuture channelFuture = sendPacket(packetMessage);
+		ChannelFuture channelFuture = OutgoingMessages.instance.send(packetMessage);
 		if(channelFutureListener != null) {
 			channelFuture.addListener(channelFutureListener);
 		}
@@ -89,6 +105,7 @@ public class ClientLib {
 	}
 
 	public static void login() {
+		ChatLib.sslPeer = myHost;
 		FormMain.clientBootstrap.connect(myHost).addListener(new ChannelFutureListener() {
 			@Override
 			public void operationComplete(ChannelFuture channelFuture) throws Exception {
@@ -105,6 +122,11 @@ public class ClientLib {
 		packetLoginRequest.username = myLogin;
 		packetLoginRequest.password = myPassord;
 		packetLoginRequest.version = ChatLib.PROTOCOL_VERSION;
+		packetLoginRequest.compression = ENABLE_STREAM_COMPRESSION;
+		packetLoginRequest.messageSession = OutgoingMessages.instance.session;
+		if (myLogin.equals(resumeLogin)) {
+			packetLoginRequest.resumeToken = resumeToken;
+		}
 		sendPacket(packetLoginRequest);
 	}
 }
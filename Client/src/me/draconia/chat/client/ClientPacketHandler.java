@@ -1,5 +1,6 @@
 package me.draconia.chat.client;
 
+import me.draconia.chat.ChatLib;
 import me.draconia.chat.client.filetransfer.FileReceiver;
 import me.draconia.chat.client.gui.ChatTab;
 import me.draconia.chat.client.gui.FormMain;
@@ -60,37 +61,73 @@ public class ClientPacketHandler extends PacketHandler {
 							FormMain.instance.getChatTab(packetChannelAction.channel);
 							break;
 						case PacketChannelAction.ACTION_LEAVE:
+							((ClientChannel) packetChannelAction.channel).resetMembership();
 							FormMain.instance.removeChatTab(packetChannelAction.channel);
 							break;
 						case PacketChannelAction.ACTION_JOIN_DECLINED:
+							((ClientChannel) packetChannelAction.channel).resetMembership();
 							FormMain.instance.removeChatTab(packetChannelAction.channel);
 							break;
 					}
 				} else {
 					switch (packetChannelAction.action) {
 						case PacketChannelAction.ACTION_JOIN:
-							((ClientChannel) packetChannelAction.channel).userJoined((ClientUser) packetChannelAction.user);
-							break;
 						case PacketChannelAction.ACTION_LEAVE:
-							((ClientChannel) packetChannelAction.channel).userLeft((ClientUser) packetChannelAction.user);
+							((ClientChannel) packetChannelAction.channel).gotMembershipChange((ClientUser) packetChannelAction.user, packetChannelAction.action, packetChannelAction.epoch, packetChannelAction.seq);
 							break;
 					}
 				}
 				break;
 			case Packets.CHANNEL_USER_SNAPSHOT:
 				PacketChannelUserSnapshotResponse packetChannelUserSnapshotResponse = (PacketChannelUserSnapshotResponse) packet;
-				((ClientChannel) packetChannelUserSnapshotResponse.channel).gotUserSnapshot(packetChannelUserSnapshotResponse.users);
+				((ClientChannel) packetChannelUserSnapshotResponse.channel).gotMembership(packetChannelUserSnapshotResponse);
+				break;
+			case Packets.HISTORY:
+				PacketHistoryResponse packetHistoryResponse = (PacketHistoryResponse) packet;
+				ClientChannel historyChannel = (ClientChannel) packetHistoryResponse.channel;
+				ChatTab historyChatTab = FormMain.instance.getChatTab(historyChannel);
+				for (Message historyMessage : packetHistoryResponse.messages) {
+					//Our own messages were shown when we sent them
+					if (historyChannel.gotHistoryMessage(historyMessage) && !historyMessage.from.equals(ClientLib.myUser) && historyMessage instanceof TextMessage) {
+						historyChatTab.historyReceived((TextMessage) historyMessage);
+					}
+				}
+				break;
+			case Packets.MESSAGE_ACK:
+				OutgoingMessages.instance.acknowledged(((PacketMessageAck) packet).seq);
+				break;
+			case Packets.MAILBOX:
+				PacketMailbox packetMailbox = (PacketMailbox) packet;
+				if (packetMailbox.messages.length == 0)
+					break;
+				for (Message mailboxMessage : packetMailbox.messages) {
+					if (mailboxMessage instanceof TextMessage) {
+						FormMain.instance.getChatTab(mailboxMessage).messageReceived(mailboxMessage);
+					}
+				}
+				PacketMailboxAck packetMailboxAck = new PacketMailboxAck();
+				packetMailboxAck.upToID = packetMailbox.messages[packetMailbox.messages.length - 1].seq;
+				ctx.getChannel().write(packetMailboxAck.getData());
 				break;
 			case Packets.LOGIN:
 				PacketLoginResponse packetLoginResponse = (PacketLoginResponse) packet;
+				if (packetLoginResponse.compression) {
+					ChatLib.enableStreamCompression(ctx);
+				}
 				if (packetLoginResponse.success) {
 					ClientLib.ENABLE_AUTORECONNECT = true;
 					ClientLib.myUser = (ClientUser) UserFactory.instance.getFromLogin(ClientLib.myLogin);
 					ClientLib.myUser.setNickname(packetLoginResponse.nickname);
-					FormMain.genericChatTab.addText("[MOTD] " + packetLoginResponse.message);
+					ClientLib.setResumeToken(packetLoginResponse.resumeToken);
+					if (packetLoginResponse.resumed) {
+						FormMain.genericChatTab.addText("[NET] Session resumed");
+					} else {
+						FormMain.genericChatTab.addText("[MOTD] " + packetLoginResponse.message);
+					}
 					ClientLib.clientDataChannel.getCloseFuture().addListener(new ChannelFutureListener() {
 						@Override
 						public void operationComplete(ChannelFuture channelFuture) throws Exception {
+							OutgoingMessages.instance.disconnected();
 							new Thread() {
 								public void run() {
 									try {
@@ -108,6 +145,8 @@ public class ClientPacketHandler extends PacketHandler {
 					});
 
 					FormMain.instance.onSuccessfulLogin();
+					//After the channels are joined again, so resent channel messages aren't refused
+					OutgoingMessages.instance.resume(ctx.getChannel(), packetLoginResponse.lastMessageSeq);
 				} else {
 					FormMain.genericChatTab.addText("[LOGIN] " + packetLoginResponse.message);
 					FormMain.instance.showLoginDialog();
@@ -133,6 +172,9 @@ public class ClientPacketHandler extends PacketHandler {
 				break;
 			case Packets.MESSAGE:
 				Message message = ((PacketMessageToClient) packet).message;
+				if (message.context instanceof ClientChannel) {
+					((ClientChannel) message.context).gotLiveMessage(message);
+				}
 				if (message instanceof TextMessage) {
 					ChatTab chatTab = FormMain.instance.getChatTab(message);
 					chatTab.messageReceived(message);
@@ -140,7 +182,7 @@ public class ClientPacketHandler extends PacketHandler {
 					BinaryMessage binaryMessage = (BinaryMessage) message;
 					if (binaryMessage.type == BinaryMessage.TYPE_OTR_MESSGAE || binaryMessage.type == BinaryMessage.TYPE_OTR_PUBKEY_1 || binaryMessage.type == BinaryMessage.TYPE_OTR_PUBKEY_2 || binaryMessage.type == BinaryMessage.TYPE_OTR_ERROR) {
 						OTRChatManager.messageReceived(binaryMessage);
-					} else if(binaryMessage.type == BinaryMessage.TYPE_FILE_DATA || binaryMessage.type == BinaryMessage.TYPE_FILE_END || binaryMessage.type == BinaryMessage.TYPE_FILE_START) {
+					} else if(binaryMessage.type == BinaryMessage.TYPE_FILE_DATA || binaryMessage.type == BinaryMessage.TYPE_FILE_END || binaryMessage.type == BinaryMessage.TYPE_FILE_START || binaryMessage.type == BinaryMessage.TYPE_FILE_CREDIT) {
 						ChatTab chatTab = FormMain.instance.getChatTab(message);
 						chatTab.messageReceived(message);
 					}
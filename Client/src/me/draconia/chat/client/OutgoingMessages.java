@@ -0,0 +1,113 @@
+package me.draconia.chat.client;
+
+import me.draconia.chat.ChatLib;
+import me.draconia.chat.net.packets.PacketMessageToServer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.DefaultChannelFuture;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+
+/**
+ * Numbers the messages we send and keeps them until the server acknowledges them (PacketMessageAck), so the ones
+ * that may have been lost with a connection are sent again after logging back in. At most
+ * {@link ChatLib#MESSAGE_WINDOW} are sent without being acknowledged, the rest wait for room.
+ */
+public class OutgoingMessages {
+	public static final OutgoingMessages instance = new OutgoingMessages();
+
+	private static class Outgoing {
+		final PacketMessageToServer packet;
+		//Completes the first time the packet is written
+		final DefaultChannelFuture future;
+
+		Outgoing(PacketMessageToServer packet) {
+			this.packet = packet;
+			this.future = new DefaultChannelFuture(null, false);
+		}
+	}
+
+	//Our seq numbers count within this, the server starts over when it changes
+	public final long session = new SecureRandom().nextLong();
+
+	//All guarded by this
+	private long nextSeq = 1;
+	private final ArrayDeque<Outgoing> inFlight = new ArrayDeque<Outgoing>();
+	private final ArrayDeque<Outgoing> waiting = new ArrayDeque<Outgoing>();
+	//Null while not logged in
+	private Channel channel = null;
+
+	private OutgoingMessages() {
+	}
+
+	/**
+	 * Numbers and sends the packet, or queues it if the window is full or we aren't logged in. The returned future
+	 * completes once it has been written.
+	 */
+	public synchronized ChannelFuture send(PacketMessageToServer packet) {
+		packet.seq = nextSeq++;
+		final Outgoing outgoing = new Outgoing(packet);
+		//Behind anything still waiting, the server drops messages that arrive out of order as already received
+		if (channel != null && waiting.isEmpty() && inFlight.size() < ChatLib.MESSAGE_WINDOW) {
+			inFlight.add(outgoing);
+			write(channel, outgoing);
+		} else {
+			waiting.add(outgoing);
+		}
+		return outgoing.future;
+	}
+
+	/**
+	 * The server got everything up to seq.
+	 */
+	public synchronized void acknowledged(long seq) {
+		while (!inFlight.isEmpty() && inFlight.peek().packet.seq <= seq) {
+			inFlight.poll();
+		}
+		fillWindow();
+	}
+
+	/**
+	 * Logged in on channel. The server got everything up to lastSeq, whatever else is in flight is sent again.
+	 */
+	public synchronized void resume(Channel channel, long lastSeq) {
+		while (!inFlight.isEmpty() && inFlight.peek().packet.seq <= lastSeq) {
+			inFlight.poll();
+		}
+		//A completed write can send the next message right away. Until the channel is set it waits behind these
+		for (Outgoing outgoing : inFlight.toArray(new Outgoing[inFlight.size()])) {
+			write(channel, outgoing);
+		}
+		this.channel = channel;
+		fillWindow();
+	}
+
+	public synchronized void disconnected() {
+		channel = null;
+	}
+
+	private void fillWindow() {
+		if (channel == null)
+			return;
+		while (!waiting.isEmpty() && inFlight.size() < ChatLib.MESSAGE_WINDOW) {
+			final Outgoing outgoing = waiting.poll();
+			inFlight.add(outgoing);
+			write(channel, outgoing);
+		}
+	}
+
+	private static void write(Channel channel, final Outgoing outgoing) {
+		//The encoding is kept for resending, so each write gets its own view of it
+		channel.write(outgoing.packet.getData().duplicate()).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture channelFuture) throws Exception {
+				//A failed write is sent again after the next login
+				if (channelFuture.isSuccess()) {
+					outgoing.future.setSuccess();
+				}
+			}
+		});
+	}
+}
@@ -1,5 +1,6 @@
 package me.draconia.chat.client.filetransfer;
 
+import me.draconia.chat.ChatLib;
 import me.draconia.chat.client.ClientLib;
 import me.draconia.chat.client.gui.ChatTab;
 import me.draconia.chat.client.gui.FormMain;
@@ -119,10 +120,34 @@ public class FileReceiver implements ChatTab.StatusTextHook {
 		randomAccessFile.seek(packetPos);
 		randomAccessFile.write(decFileData, 0, packetLen);
 		written += packetLen;
+
+		//Credits go back in batches once the data is on disk
+		consumed++;
+		if(consumed >= ChatLib.FILE_WINDOW / 2) {
+			sendCredit(consumed);
+			consumed = 0;
+		}
+	}
+
+	private int consumed = 0;
+
+	private void sendCredit(int count) {
+		BinaryMessage binaryMessage = new BinaryMessage();
+		binaryMessage.context = recvFrom;
+		binaryMessage.from = ClientLib.myUser;
+		binaryMessage.type = BinaryMessage.TYPE_FILE_CREDIT;
+		final byte[] content = new byte[8];
+		System.arraycopy(intCodec.toBytes(fileID), 0, content, 0, 4);
+		System.arraycopy(intCodec.toBytes(count), 0, content, 4, 4);
+		binaryMessage.content = content;
+		//Not encrypted, the server has to read it
+		ClientLib.sendMessage(binaryMessage, false);
 	}
 
 	private void receivedFileEnd(BinaryMessage binaryMessage) throws Exception {
 		randomAccessFile.close();
+		//Lets the server forget the transfer right away
+		sendCredit(0);
 		ChatTab chatTab = FormMain.instance.getChatTab(binaryMessage);
 		chatTab.addText("[FILE] Received " + file.getName());
 		chatTab.removeStatusTextHook(this);
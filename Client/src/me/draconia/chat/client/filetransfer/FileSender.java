@@ -1,5 +1,6 @@
 package me.draconia.chat.client.filetransfer;
 
+import me.draconia.chat.ChatLib;
 import me.draconia.chat.client.ClientLib;
 import me.draconia.chat.client.gui.ChatTab;
 import me.draconia.chat.client.gui.FormMain;
@@ -116,6 +117,38 @@ public class FileSender implements ChatTab.StatusTextHook {
 		}
 	}
 
+	public static void fileTransferCreditReceived(BinaryMessage binaryMessage) {
+		final IntCodec intCodec = new IntCodec();
+		ClientUserInteger clientUserInteger = new ClientUserInteger((ClientUser)binaryMessage.from, intCodec.toNum(binaryMessage.content, 0));
+		final FileSender fileSender;
+		synchronized (fileSenders) {
+			fileSender = fileSenders.get(clientUserInteger);
+		}
+		if(fileSender != null)
+			fileSender.addCredits(intCodec.toNum(binaryMessage.content, 4));
+	}
+
+	//Data messages the receiver is ready for, see ChatLib.FILE_WINDOW. Guarded by this
+	private int credits = ChatLib.FILE_WINDOW;
+	private boolean waitingForCredits = false;
+
+	private synchronized void addCredits(int count) {
+		credits += count;
+		if(waitingForCredits && credits > 0) {
+			waitingForCredits = false;
+			kickFileTransfer();
+		}
+	}
+
+	private synchronized boolean takeCredit() {
+		if(credits <= 0) {
+			waitingForCredits = true;
+			return false;
+		}
+		credits--;
+		return true;
+	}
+
 	public FileSender(ClientUser sendTo, File file) {
 		if(file.isDirectory() || !file.exists())
 			throw new Error("Wat?");
@@ -182,7 +215,9 @@ public class FileSender implements ChatTab.StatusTextHook {
 
 	private void processFileTransfer() {
 		if(pos < len) {
-			sendFileData();
+			//Otherwise addCredits() picks it up again
+			if(takeCredit())
+				sendFileData();
 			return;
 		}
 
@@ -206,6 +241,7 @@ public class FileSender implements ChatTab.StatusTextHook {
 		try {
 			int readLen = fileInputStream.read(fileData, 0, PACKET_SIZE);
 			if(readLen < 1) {
+				credits++;
 				kickFileTransfer();
 				return;
 			}
@@ -209,28 +209,36 @@ public class ChatTab {
 
 	private final IntCodec intCodec = new IntCodec();
 
+	//Missed messages caught up on after a reconnect, shown without beeping
+	public void historyReceived(TextMessage textMessage) {
+		showTextMessage(textMessage);
+	}
+
+	private void showTextMessage(TextMessage textMessage) {
+		if (textMessage.from.equals(User.getSYSTEM())) {
+			addText(textMessage.content);
+		} else {
+			switch (textMessage.type) {
+				case TextMessage.TYPE_CHAT:
+					addText(textMessage.from.getDisplayName() + ": " + textMessage.content);
+					break;
+				case TextMessage.TYPE_ACTION:
+					addText("* " + textMessage.from.getDisplayName() + " " + textMessage.content);
+					break;
+				case TextMessage.TYPE_EVENT:
+					addText("**" + textMessage.content + "** [" + textMessage.from.getContextName() + "]");
+					break;
+			}
+		}
+	}
+
 	public void messageReceived(Message message) {
 		if (message instanceof TextMessage) {
 			if(!FormMain.instance.rootFrame.isFocused()) {
 				Toolkit.getDefaultToolkit().beep();
 			}
 
-			TextMessage textMessage = (TextMessage) message;
-			if (message.from.equals(User.getSYSTEM())) {
-				addText(textMessage.content);
-			} else {
-				switch (textMessage.type) {
-					case TextMessage.TYPE_CHAT:
-						addText(textMessage.from.getDisplayName() + ": " + textMessage.content);
-						break;
-					case TextMessage.TYPE_ACTION:
-						addText("* " + textMessage.from.getDisplayName() + " " + textMessage.content);
-						break;
-					case TextMessage.TYPE_EVENT:
-						addText("**" + textMessage.content + "** [" + textMessage.from.getContextName() + "]");
-						break;
-				}
-			}
+			showTextMessage((TextMessage) message);
 		} else if(message instanceof BinaryMessage) {
 			final BinaryMessage binaryMessage = (BinaryMessage)message;
 			if(message.type == BinaryMessage.TYPE_FILE_START) {
@@ -257,6 +265,8 @@ public class ChatTab {
 				}
 			} else if(message.type == BinaryMessage.TYPE_FILE_START_RESPONSE) {
 				FileSender.fileTransferAckNackReceived(binaryMessage);
+			} else if(message.type == BinaryMessage.TYPE_FILE_CREDIT) {
+				FileSender.fileTransferCreditReceived(binaryMessage);
 			} else if(message.type == BinaryMessage.TYPE_TYPING_STATE) {
 				if(typingStatusTextHook != null) {
 					typingStatusTextHook.setTypingState(message.from, binaryMessage.content[0]);
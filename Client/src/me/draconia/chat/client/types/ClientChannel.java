@@ -1,36 +1,118 @@
 package me.draconia.chat.client.types;
 
 import me.draconia.chat.client.ClientLib;
+import me.draconia.chat.client.gui.ChatTab;
 import me.draconia.chat.client.gui.FormMain;
 import me.draconia.chat.net.packets.PacketChannelAction;
+import me.draconia.chat.net.packets.PacketChannelUserSnapshotResponse;
+import me.draconia.chat.net.packets.PacketHistoryRequest;
 import me.draconia.chat.types.Channel;
+import me.draconia.chat.types.Message;
 import me.draconia.chat.types.User;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 
 public class ClientChannel extends Channel {
 	private final HashSet<ClientUser> users = new HashSet<ClientUser>();
+	//Version of the membership in users (0 if there is none), sent along when rejoining so the server only sends what changed. All guarded by users
+	private int membershipEpoch = 0;
+	private int membershipSeq = 0;
+	//Set while waiting for the server to answer a resync
+	private boolean resyncing = false;
+	//Pages of a member list still being received
+	private ArrayList<User> snapshotPages = null;
+
+	//How many missed messages to ask for when rejoining after a reconnect
+	private static final int HISTORY_LIMIT = 500;
+	//Newest message of the channel we have shown (0 if none). Also guarded by users
+	private long lastMessageSeq = 0;
+	//Missed messages asked for when the rejoin completes are those after historySince and before the first one we got live
+	private long historySince = 0;
+	private long firstLiveSeq = Long.MAX_VALUE;
+	private boolean historyPending = false;
 
 	ClientChannel(String name) {
 		super(name);
 	}
 
-	public void userJoined(ClientUser clientUser) {
+	/**
+	 * A user other than us joined or left. Changes we already have are ignored, and if one went missing the
+	 * membership is resynced.
+	 */
+	public void gotMembershipChange(ClientUser clientUser, byte action, int epoch, int seq) {
+		final boolean changed;
+		boolean resync = false;
 		synchronized (users) {
-			users.add(clientUser);
+			if (membershipEpoch == 0 || resyncing || snapshotPages != null)
+				return;
+			if (epoch == membershipEpoch && seq <= membershipSeq)
+				return;
+			if (epoch != membershipEpoch || seq != membershipSeq + 1) {
+				resyncing = true;
+				resync = true;
+				changed = false;
+			} else {
+				membershipSeq = seq;
+				changed = (action == PacketChannelAction.ACTION_JOIN) ? users.add(clientUser) : users.remove(clientUser);
+			}
+		}
+		if (resync) {
+			join();
+			return;
+		}
+		if (!changed)
+			return;
+		if (action == PacketChannelAction.ACTION_JOIN) {
+			FormMain.instance.getChatTab(this).addUserToList(clientUser);
+		} else {
+			FormMain.instance.getChatTab(this).removeUserFromList(clientUser);
 		}
-		FormMain.instance.getChatTab(this).addUserToList(clientUser);
 	}
 
-	public void userLeft(ClientUser clientUser) {
-		synchronized (users) {
-			users.remove(clientUser);
+	public void gotMembership(PacketChannelUserSnapshotResponse packet) {
+		if (!packet.more) {
+			requestHistory();
+		}
+		if (packet.incremental) {
+			final ArrayList<User> joined = new ArrayList<User>();
+			final ArrayList<User> left = new ArrayList<User>();
+			synchronized (users) {
+				membershipEpoch = packet.epoch;
+				membershipSeq = packet.seq;
+				resyncing = false;
+				snapshotPages = null;
+				for (User joinedUser : packet.users) {
+					if (users.add((ClientUser) joinedUser)) joined.add(joinedUser);
+				}
+				for (User leftUser : packet.leftUsers) {
+					if (users.remove((ClientUser) leftUser)) left.add(leftUser);
+				}
+			}
+			final ChatTab chatTab = FormMain.instance.getChatTab(this);
+			for (User joinedUser : joined) {
+				chatTab.addUserToList(joinedUser);
+			}
+			for (User leftUser : left) {
+				chatTab.removeUserFromList(leftUser);
+			}
+			return;
 		}
-		FormMain.instance.getChatTab(this).removeUserFromList(clientUser);
-	}
 
-	public void gotUserSnapshot(User[] newUsers) {
+		final User[] newUsers;
 		synchronized (users) {
+			if (packet.offset == 0 || snapshotPages == null) {
+				snapshotPages = new ArrayList<User>(packet.users.length);
+			}
+			Collections.addAll(snapshotPages, packet.users);
+			if (packet.more)
+				return;
+			newUsers = snapshotPages.toArray(new User[snapshotPages.size()]);
+			snapshotPages = null;
+			membershipEpoch = packet.epoch;
+			membershipSeq = packet.seq;
+			resyncing = false;
 			users.clear();
 			for (User newUser : newUsers) {
 				users.add((ClientUser) newUser);
@@ -39,11 +121,70 @@ public class ClientChannel extends Channel {
 		FormMain.instance.getChatTab(this).setUserList(newUsers);
 	}
 
+	//We left, the next join starts from scratch
+	public void resetMembership() {
+		synchronized (users) {
+			users.clear();
+			membershipEpoch = 0;
+			membershipSeq = 0;
+			resyncing = false;
+			snapshotPages = null;
+			lastMessageSeq = 0;
+			historySince = 0;
+			firstLiveSeq = Long.MAX_VALUE;
+			historyPending = false;
+		}
+	}
+
+	private void requestHistory() {
+		final PacketHistoryRequest packetHistoryRequest;
+		synchronized (users) {
+			if (!historyPending)
+				return;
+			historyPending = false;
+			packetHistoryRequest = new PacketHistoryRequest();
+			packetHistoryRequest.channel = this;
+			packetHistoryRequest.sinceSeq = historySince;
+			packetHistoryRequest.limit = HISTORY_LIMIT;
+		}
+		ClientLib.sendPacket(packetHistoryRequest);
+	}
+
+	//A message sent to the channel while we are in it
+	public void gotLiveMessage(Message message) {
+		if (message.seq == 0)
+			return;
+		synchronized (users) {
+			if (firstLiveSeq == Long.MAX_VALUE) firstLiveSeq = message.seq;
+			lastMessageSeq = Math.max(lastMessageSeq, message.seq);
+		}
+	}
+
+	/**
+	 * Whether a message from a history response is one we missed, rather than one we got live meanwhile.
+	 */
+	public boolean gotHistoryMessage(Message message) {
+		synchronized (users) {
+			if (message.seq <= historySince || message.seq >= firstLiveSeq)
+				return false;
+			lastMessageSeq = Math.max(lastMessageSeq, message.seq);
+			return true;
+		}
+	}
+
 	public void join() {
 		PacketChannelAction packetChannelAction = new PacketChannelAction();
 		packetChannelAction.channel = this;
 		packetChannelAction.user = ClientLib.myUser;
 		packetChannelAction.action = PacketChannelAction.ACTION_JOIN;
+		synchronized (users) {
+			packetChannelAction.epoch = membershipEpoch;
+			packetChannelAction.seq = membershipSeq;
+			//Only rejoins after a reconnect have missed messages to catch up on
+			historySince = lastMessageSeq;
+			firstLiveSeq = Long.MAX_VALUE;
+			historyPending = (lastMessageSeq > 0);
+		}
 		ClientLib.sendPacket(packetChannelAction);
 	}
 
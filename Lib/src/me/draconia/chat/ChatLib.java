@@ -1,39 +1,75 @@
 package me.draconia.chat;
 
 import me.draconia.chat.net.PacketHandler;
-import me.draconia.chat.net.PacketReplayingDecoder;
+import me.draconia.chat.net.TextCompression;
+import me.draconia.chat.net.PacketFrameDecoder;
 import me.draconia.chat.net.packets.Packet;
 import me.draconia.chat.types.ChannelFactory;
 import me.draconia.chat.types.UserFactory;
+import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.compression.ZlibDecoder;
+import org.jboss.netty.handler.codec.compression.ZlibEncoder;
 import org.jboss.netty.handler.ssl.SslHandler;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+
+import java.net.InetSocketAddress;
 
 public class ChatLib {
-	public static final int PROTOCOL_VERSION = 2;
+	public static final int PROTOCOL_VERSION = 12;
+	public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+	public static final int STREAM_COMPRESSION_LEVEL = 6;
+	//Messages a client may have sent without them being acknowledged yet, see PacketMessageAck
+	public static final int MESSAGE_WINDOW = 64;
+	//TYPE_FILE_DATA messages of one file transfer that may be sent before the receiver grants more with TYPE_FILE_CREDIT
+	public static final int FILE_WINDOW = 16;
+	//How long (seconds) TLS sessions are kept for abbreviated handshakes on reconnect, and how many of them
+	public static final int SSL_SESSION_TIMEOUT = 24 * 60 * 60;
+	public static final int SSL_SESSION_CACHE_SIZE = 20000;
+
+	//Client side: the server being connected to, so the SSL engine can offer the session it last had with it
+	public static volatile InetSocketAddress sslPeer = null;
 
 	public static ChannelPipelineFactory initialize(final SSLContext sslContext, final boolean clientMode, final PacketHandler packetHandler, final Packet.Side side, final UserFactory userFactory, final ChannelFactory channelFactory) {
 		Packet.initialize(side);
 		UserFactory.setInstance(userFactory);
 		ChannelFactory.instance = channelFactory;
+		final SSLSessionContext sslSessionContext = clientMode ? sslContext.getClientSessionContext() : sslContext.getServerSessionContext();
+		sslSessionContext.setSessionTimeout(SSL_SESSION_TIMEOUT);
+		sslSessionContext.setSessionCacheSize(SSL_SESSION_CACHE_SIZE);
 
 		return new ChannelPipelineFactory() {
 			@Override
 			public ChannelPipeline getPipeline() throws Exception {
 				ChannelPipeline pipeline = Channels.pipeline();
 
-				SSLEngine sslEngine = sslContext.createSSLEngine();
+				//Sessions are only cached per peer, an engine that doesn't know its peer always does a full handshake
+				final InetSocketAddress peer = sslPeer;
+				SSLEngine sslEngine = (clientMode && peer != null) ? sslContext.createSSLEngine(peer.getHostName(), peer.getPort()) : sslContext.createSSLEngine();
 				sslEngine.setUseClientMode(clientMode);
 				pipeline.addLast("ssl", new SslHandler(sslEngine));
-				pipeline.addLast("framer", new PacketReplayingDecoder());
+				pipeline.addLast("framer", new PacketFrameDecoder(MAX_FRAME_LENGTH));
 				pipeline.addLast("handler", packetHandler);
 
 				return pipeline;
 			}
 		};
 	}
+
+	/**
+	 * Switches a connection to a single deflate stream (primed with the chat dictionary) that lives as long as
+	 * the connection, so names and nicknames repeated across packets compress against each other.
+	 * Both sides call this on the connection's I/O thread, the server right after writing the login response and the
+	 * client while handling it, so the switch happens at the same point of the stream in both directions.
+	 */
+	public static void enableStreamCompression(ChannelHandlerContext ctx) {
+		final ChannelPipeline pipeline = ctx.getPipeline();
+		pipeline.addAfter("ssl", "deflater", new ZlibEncoder(STREAM_COMPRESSION_LEVEL, TextCompression.getDictionary()));
+		((PacketFrameDecoder) pipeline.get("framer")).insertDecoder(ctx, "inflater", new ZlibDecoder(TextCompression.getDictionary()));
+	}
 }
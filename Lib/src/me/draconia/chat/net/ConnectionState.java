@@ -0,0 +1,47 @@
+package me.draconia.chat.net;
+
+import me.draconia.chat.types.Channel;
+import me.draconia.chat.types.User;
+
+import java.util.Arrays;
+
+/**
+ * Decoding state that lives as long as one connection: the users and channels the peer has
+ * defined symbol IDs for (see PacketSymbolDefinition).
+ * Only touched from the connection's framer, so it needs no locking.
+ */
+public class ConnectionState {
+	//Base of message timestamps, from PacketLoginResponse
+	public long timestampEpoch = 0;
+
+	private User[] users = new User[64];
+	private Channel[] channels = new Channel[16];
+
+	public void defineUser(int symbolID, User user) {
+		if (symbolID >= users.length) {
+			users = Arrays.copyOf(users, Math.max(users.length * 2, symbolID + 1));
+		}
+		users[symbolID] = user;
+	}
+
+	public void defineChannel(int symbolID, Channel channel) {
+		if (symbolID >= channels.length) {
+			channels = Arrays.copyOf(channels, Math.max(channels.length * 2, symbolID + 1));
+		}
+		channels[symbolID] = channel;
+	}
+
+	public User getUser(int symbolID) {
+		final User user = (symbolID >= 0 && symbolID < users.length) ? users[symbolID] : null;
+		if (user == null)
+			throw new IllegalStateException("Undefined user symbol " + symbolID);
+		return user;
+	}
+
+	public Channel getChannel(int symbolID) {
+		final Channel channel = (symbolID >= 0 && symbolID < channels.length) ? channels[symbolID] : null;
+		if (channel == null)
+			throw new IllegalStateException("Undefined channel symbol " + symbolID);
+		return channel;
+	}
+}
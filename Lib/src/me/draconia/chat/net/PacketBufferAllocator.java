@@ -0,0 +1,32 @@
+package me.draconia.chat.net;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Supplies the buffers packets are encoded into. Buffers handed out must be able to grow past the
+ * requested capacity, as the capacity is only a prediction.
+ */
+public abstract class PacketBufferAllocator {
+	public static PacketBufferAllocator instance = new UnpooledPacketBufferAllocator(HeapChannelBufferFactory.getInstance());
+
+	protected final AtomicLong hits = new AtomicLong();
+	protected final AtomicLong misses = new AtomicLong();
+
+	public abstract ChannelBuffer allocate(int capacity);
+
+	/**
+	 * Hands a buffer back once nothing references it anymore (including pending writes).
+	 */
+	public abstract void release(ChannelBuffer buffer);
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,103 @@
+package me.draconia.chat.net;
+
+import me.draconia.chat.net.packets.Packet;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+
+/**
+ * Splits the stream into [id:byte][length:int][body] frames.
+ * Nothing is decoded until the whole frame is buffered, and the body is handed to the packet
+ * as a slice of the cumulation buffer, so there is neither replaying nor copying.
+ */
+public class PacketFrameDecoder extends FrameDecoder {
+	private static final int HEADER_LENGTH = 5;
+
+	private final int maxFrameLength;
+	private final ConnectionState connectionState = new ConnectionState();
+
+	//Set while messageReceived is decoding, a decoder inserted meanwhile only takes over after the current frame
+	private boolean receiving = false;
+	private ChannelHandler insertedDecoder = null;
+	private ChannelBuffer divertedBytes = null;
+
+	public PacketFrameDecoder(int maxFrameLength) {
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	/**
+	 * Puts a decoder (like an inflater) in front of this framer. Must be called from the I/O thread of this connection.
+	 * While handling a packet of this connection it takes effect right after the frame currently being handled, and
+	 * bytes that were already buffered past that frame are fed through the new decoder. Otherwise (like from a task
+	 * run with executeInIoThread) everything received from then on goes through it.
+	 */
+	public void insertDecoder(ChannelHandlerContext ctx, String name, ChannelHandler decoder) {
+		ctx.getPipeline().addBefore(ctx.getPipeline().getContext(this).getName(), name, decoder);
+		if (receiving) {
+			insertedDecoder = decoder;
+		}
+	}
+
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		receiving = true;
+		try {
+			super.messageReceived(ctx, e);
+		} finally {
+			receiving = false;
+		}
+
+		if (insertedDecoder != null) {
+			final ChannelHandler decoder = insertedDecoder;
+			final ChannelBuffer bytes = divertedBytes;
+			insertedDecoder = null;
+			divertedBytes = null;
+			if (bytes != null) {
+				((ChannelUpstreamHandler) decoder).handleUpstream(ctx.getPipeline().getContext(decoder), new UpstreamMessageEvent(e.getChannel(), bytes, e.getRemoteAddress()));
+			}
+		}
+	}
+
+	@Override
+	protected Object decode(ChannelHandlerContext channelHandlerContext, Channel channel, ChannelBuffer channelBuffer) throws Exception {
+		if (insertedDecoder != null) {
+			//Everything from here on still has to go through the new decoder
+			divertedBytes = channelBuffer.readBytes(channelBuffer.readableBytes());
+			return null;
+		}
+
+		if (channelBuffer.readableBytes() < HEADER_LENGTH)
+			return null;
+
+		final int readerIndex = channelBuffer.readerIndex();
+		final byte id = channelBuffer.getByte(readerIndex);
+		final int length = channelBuffer.getInt(readerIndex + 1);
+
+		if (length < 0) {
+			channelBuffer.skipBytes(channelBuffer.readableBytes());
+			channel.close();
+			throw new CorruptedFrameException("Negative frame length " + length + " for packet ID " + (int) id);
+		}
+		if (length > maxFrameLength) {
+			//We can't resync the stream after skipping, so drop the connection
+			channelBuffer.skipBytes(channelBuffer.readableBytes());
+			channel.close();
+			throw new TooLongFrameException("Frame length " + length + " for packet ID " + (int) id + " exceeds " + maxFrameLength);
+		}
+
+		if (channelBuffer.readableBytes() < HEADER_LENGTH + length)
+			return null;
+
+		//Packets are fully decoded right here, so the slice never outlives this call
+		final ChannelBuffer frame = channelBuffer.slice(readerIndex + HEADER_LENGTH, length);
+		channelBuffer.skipBytes(HEADER_LENGTH + length);
+		return Packet.createPacketFrom(id, frame, connectionState);
+	}
+}
@@ -9,4 +9,8 @@ public class Packets {
 	public static final byte NICK_SET = 5;
 	public static final byte CHANNEL_ACTION = 6;
 	public static final byte CHANNEL_USER_SNAPSHOT = 7;
+	public static final byte SYMBOL_DEFINITION = 8;
+	public static final byte HISTORY = 9;
+	public static final byte MAILBOX = 10;
+	public static final byte MESSAGE_ACK = 11;
 }
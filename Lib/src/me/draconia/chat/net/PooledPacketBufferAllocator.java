@@ -0,0 +1,78 @@
+package me.draconia.chat.net;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps released buffers in power-of-two size classes (64 bytes up to 64 KiB) for reuse.
+ * Heap or direct memory depends on the factory passed in.
+ */
+public class PooledPacketBufferAllocator extends PacketBufferAllocator {
+	private static final int MIN_CLASS_SHIFT = 6;
+	private static final int MAX_CLASS_SHIFT = 16;
+
+	private static class Pool {
+		final ConcurrentLinkedQueue<ChannelBuffer> buffers = new ConcurrentLinkedQueue<ChannelBuffer>();
+		final AtomicInteger size = new AtomicInteger();
+	}
+
+	private final ChannelBufferFactory factory;
+	private final int maxBuffersPerClass;
+
+	private final Pool[] pools;
+
+	public PooledPacketBufferAllocator(ChannelBufferFactory factory, int maxBuffersPerClass) {
+		this.factory = factory;
+		this.maxBuffersPerClass = maxBuffersPerClass;
+
+		pools = new Pool[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+		for (int i = 0; i < pools.length; i++) {
+			pools[i] = new Pool();
+		}
+	}
+
+	//Smallest class that fits the given capacity
+	private static int classFor(int capacity) {
+		if (capacity <= (1 << MIN_CLASS_SHIFT))
+			return 0;
+		return (32 - Integer.numberOfLeadingZeros(capacity - 1)) - MIN_CLASS_SHIFT;
+	}
+
+	@Override
+	public ChannelBuffer allocate(int capacity) {
+		final int sizeClass = classFor(capacity);
+		if (sizeClass >= pools.length) {
+			misses.incrementAndGet();
+			return ChannelBuffers.dynamicBuffer(capacity, factory);
+		}
+
+		final ChannelBuffer buffer = pools[sizeClass].buffers.poll();
+		if (buffer == null) {
+			misses.incrementAndGet();
+			return ChannelBuffers.dynamicBuffer(1 << (sizeClass + MIN_CLASS_SHIFT), factory);
+		}
+		pools[sizeClass].size.decrementAndGet();
+		hits.incrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	@Override
+	public void release(ChannelBuffer buffer) {
+		//A buffer that grew while encoding goes into the largest class it fully covers
+		final int capacity = buffer.capacity();
+		if (capacity < (1 << MIN_CLASS_SHIFT))
+			return;
+		final int sizeClass = Math.min((31 - Integer.numberOfLeadingZeros(capacity)) - MIN_CLASS_SHIFT, pools.length - 1);
+		final Pool pool = pools[sizeClass];
+		if (pool.size.incrementAndGet() > maxBuffersPerClass) {
+			pool.size.decrementAndGet();
+			return;
+		}
+		pool.buffers.add(buffer);
+	}
+}
@@ -0,0 +1,157 @@
+package me.draconia.chat.net;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec behind Packet.readCompressedString/writeCompressedString.
+ * Wire format: [codec:byte][length:varint] followed by either the raw UTF-8 bytes (CODEC_RAW) or
+ * [compressedLength:varint][raw deflate stream] (CODEC_DEFLATE). Deflate runs at its fastest (LZ77 only) level and
+ * is primed with a preset dictionary of common chat text, so even short lines compress.
+ */
+public class TextCompression {
+	public static final byte CODEC_RAW = 0;
+	public static final byte CODEC_DEFLATE = 1;
+
+	//Below this many bytes compression is not worth the CPU
+	public static final int MIN_COMPRESS_LENGTH = 96;
+	//Refuse to inflate more than this, whatever the packet claims
+	public static final int MAX_DECOMPRESSED_LENGTH = 4 * 1024 * 1024;
+
+	//Deflate prefers matches near the end of the dictionary, so the most common text comes last
+	private static final byte[] DICTIONARY = toUTF8(
+			"Exception in thread \"main\" java.lang.NullPointerException\n\tat java.lang.Thread.run(Thread.java)\n" +
+			"Caused by: java.io.IOException: Connection reset by peer\n" +
+			"[INFO] [WARN] [ERROR] [DEBUG] ERROR: WARNING: INFO: DEBUG: Traceback (most recent call last):\n" +
+			"  File \"\", line , in <module>\nTypeError: undefined is not a function\n" +
+			"#include <stdio.h>\nint main(int argc, char *argv[]) {\n\treturn 0;\n}\n" +
+			"public static void main(String[] args) {\n\tSystem.out.println(\"\");\n}\n" +
+			"private final String protected boolean return null; return true; return false; throw new " +
+			"if (x == null) {\n} else {\n}\nfor (int i = 0; i < length; i++) {\nwhile (true) {\n" +
+			"function () { var let const => console.log(); import from export default class extends " +
+			"def __init__(self): self. print() import os import sys from . return None\n" +
+			"SELECT * FROM WHERE ORDER BY LIMIT INSERT INTO VALUES UPDATE SET DELETE " +
+			"$ sudo apt-get install git clone git commit -m git push origin master cd ls -la grep cat echo " +
+			"http://www. https://www. https://github.com/ .com/ .org/ .net/ index.html?id=&amp; " +
+			"```\n```java\n```python\n" +
+			"lol lmao rofl omg brb afk gtg idk imo imho btw np ty thx thanks thank you please sorry " +
+			"yes yeah yep no nope okay ok sure maybe hmm haha hehe :) :( :D ;) :P <3 ^^ xD o/ \\o " +
+			"good morning good night hello hi hey everyone anyone there what's up how are you " +
+			"I think I don't know I'm not sure do you have can you could you would you " +
+			"because about there their they're going to want to have to need to right now " +
+			"the and that this with from have it is was for not but you are what when where which who why how " +
+			"the of and to in is it that for you was on are with as be at have this I "
+	);
+
+	public static byte[] getDictionary() {
+		return DICTIONARY.clone();
+	}
+
+	private static final int MIN_BUFFER_SIZE = 1024;
+
+	private static class Codec {
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		final Inflater inflater = new Inflater(true);
+		byte[] buffer = new byte[MIN_BUFFER_SIZE];
+
+		byte[] buffer(int size) {
+			if (buffer.length < size) {
+				buffer = new byte[size];
+			}
+			return buffer;
+		}
+	}
+
+	private static final ThreadLocal<Codec> codecs = new ThreadLocal<Codec>() {
+		@Override
+		protected Codec initialValue() {
+			return new Codec();
+		}
+	};
+
+	private static byte[] toUTF8(String string) {
+		return string.getBytes(Utf8Codec.UTF8);
+	}
+
+	public static void write(ChannelBuffer channelBuffer, String string) {
+		final byte[] rawBytes = toUTF8(string);
+
+		if (rawBytes.length >= MIN_COMPRESS_LENGTH) {
+			final Codec codec = codecs.get();
+			final Deflater deflater = codec.deflater;
+			deflater.reset();
+			deflater.setDictionary(DICTIONARY);
+			deflater.setInput(rawBytes);
+			deflater.finish();
+			//Only worth it if it ends up smaller, so don't let it write more than the raw size
+			final byte[] compressed = codec.buffer(rawBytes.length);
+			int compressedLength = 0;
+			while (!deflater.finished() && compressedLength < rawBytes.length) {
+				compressedLength += deflater.deflate(compressed, compressedLength, rawBytes.length - compressedLength);
+			}
+			if (deflater.finished() && compressedLength + 2 < rawBytes.length) {
+				channelBuffer.writeByte(CODEC_DEFLATE);
+				VarInt.writeInt(channelBuffer, rawBytes.length);
+				VarInt.writeInt(channelBuffer, compressedLength);
+				channelBuffer.writeBytes(compressed, 0, compressedLength);
+				return;
+			}
+		}
+
+		channelBuffer.writeByte(CODEC_RAW);
+		VarInt.writeInt(channelBuffer, rawBytes.length);
+		channelBuffer.writeBytes(rawBytes);
+	}
+
+	public static String read(ChannelBuffer channelBuffer) {
+		final byte codecID = channelBuffer.readByte();
+		final int rawLength = VarInt.readInt(channelBuffer);
+		if (rawLength < 0 || rawLength > MAX_DECOMPRESSED_LENGTH)
+			throw new IllegalArgumentException("Invalid compressed string length " + rawLength);
+
+		switch (codecID) {
+			case CODEC_RAW:
+				if (rawLength > channelBuffer.readableBytes())
+					throw new IllegalArgumentException("Invalid compressed string length " + rawLength);
+				final byte[] rawBytes = new byte[rawLength];
+				channelBuffer.readBytes(rawBytes);
+				return fromUTF8(rawBytes, rawLength);
+			case CODEC_DEFLATE:
+				final int compressedLength = VarInt.readInt(channelBuffer);
+				if (compressedLength < 0 || compressedLength > channelBuffer.readableBytes())
+					throw new IllegalArgumentException("Invalid compressed data length " + compressedLength);
+				final byte[] compressed = new byte[compressedLength];
+				channelBuffer.readBytes(compressed);
+
+				final Codec codec = codecs.get();
+				final Inflater inflater = codec.inflater;
+				inflater.reset();
+				inflater.setDictionary(DICTIONARY);
+				inflater.setInput(compressed);
+				final byte[] inflated = codec.buffer(rawLength);
+				int inflatedLength = 0;
+				try {
+					while (inflatedLength < rawLength && !inflater.finished()) {
+						final int count = inflater.inflate(inflated, inflatedLength, rawLength - inflatedLength);
+						if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+							break;
+						inflatedLength += count;
+					}
+				} catch (DataFormatException e) {
+					throw new IllegalArgumentException("Corrupted compressed string", e);
+				}
+				if (inflatedLength != rawLength)
+					throw new IllegalArgumentException("Compressed string inflated to " + inflatedLength + " instead of " + rawLength + " bytes");
+				return fromUTF8(inflated, rawLength);
+			default:
+				throw new IllegalArgumentException("Unknown string codec " + (int) codecID);
+		}
+	}
+
+	private static String fromUTF8(byte[] bytes, int length) {
+		return new String(bytes, 0, length, Utf8Codec.UTF8);
+	}
+}
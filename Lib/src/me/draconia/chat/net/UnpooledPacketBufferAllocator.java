@@ -0,0 +1,23 @@
+package me.draconia.chat.net;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+public class UnpooledPacketBufferAllocator extends PacketBufferAllocator {
+	private final ChannelBufferFactory factory;
+
+	public UnpooledPacketBufferAllocator(ChannelBufferFactory factory) {
+		this.factory = factory;
+	}
+
+	@Override
+	public ChannelBuffer allocate(int capacity) {
+		misses.incrementAndGet();
+		return ChannelBuffers.dynamicBuffer(capacity, factory);
+	}
+
+	@Override
+	public void release(ChannelBuffer buffer) {
+	}
+}
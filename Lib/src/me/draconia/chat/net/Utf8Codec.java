@@ -0,0 +1,137 @@
+package me.draconia.chat.net;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.nio.charset.Charset;
+
+/**
+ * Varint-length-prefixed UTF-8 strings. Short strings (logins, channel names, nicknames) are encoded in a single pass
+ * straight into heap buffers, longer ones go through String.getBytes, which is faster for them. Strings are decoded
+ * straight out of the ChannelBuffer, and short ASCII ones are looked up in a small cache so repeated identifiers
+ * decode to the same String instance.
+ */
+public class Utf8Codec {
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int CACHE_SIZE = 1024;
+	private static final int MAX_CACHED_LENGTH = 12;
+	//Longer strings are encoded with String.getBytes
+	private static final int MAX_DIRECT_LENGTH = 12;
+	//Racy on purpose: entries are immutable Strings, a lost update only costs a cache miss
+	private static final String[] cache = new String[CACHE_SIZE];
+
+	public static int encodedLength(String string) {
+		final int length = string.length();
+		int bytes = length;
+		for (int i = 0; i < length; i++) {
+			final char c = string.charAt(i);
+			if (c < 0x80) {
+				continue;
+			} else if (c < 0x800) {
+				bytes += 1;
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+				bytes += 2; //4 bytes for the pair of chars
+				i++;
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				//Unpaired surrogate, written as '?' like String.getBytes does
+			} else {
+				bytes += 2;
+			}
+		}
+		return bytes;
+	}
+
+	public static void write(ChannelBuffer channelBuffer, String string) {
+		final int length = string.length();
+		if (length > MAX_DIRECT_LENGTH || !channelBuffer.hasArray()) {
+			//String.getBytes is intrinsified and beats encoding char by char for anything longer
+			final byte[] bytes = string.getBytes(UTF8);
+			VarInt.writeInt(channelBuffer, bytes.length);
+			channelBuffer.writeBytes(bytes);
+			return;
+		}
+
+		//At most 3 bytes per char, so the length fits the one byte varint reserved in front and is filled in afterwards
+		channelBuffer.ensureWritableBytes(1 + 3 * length);
+		final byte[] array = channelBuffer.array();
+		final int offset = channelBuffer.arrayOffset();
+		final int start = offset + channelBuffer.writerIndex();
+		final int end = encodeInto(array, start + 1, string);
+		array[start] = (byte) (end - start - 1);
+		channelBuffer.writerIndex(end - offset);
+	}
+
+	private static int encodeInto(byte[] array, int index, String string) {
+		final int length = string.length();
+		for (int i = 0; i < length; i++) {
+			final char c = string.charAt(i);
+			if (c < 0x80) {
+				array[index++] = (byte) c;
+			} else if (c < 0x800) {
+				array[index++] = (byte) (0xC0 | (c >> 6));
+				array[index++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+				final int codePoint = Character.toCodePoint(c, string.charAt(++i));
+				array[index++] = (byte) (0xF0 | (codePoint >> 18));
+				array[index++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				array[index++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				array[index++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				array[index++] = '?';
+			} else {
+				array[index++] = (byte) (0xE0 | (c >> 12));
+				array[index++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				array[index++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return index;
+	}
+
+	public static String read(ChannelBuffer channelBuffer) {
+		final int length = VarInt.readInt(channelBuffer);
+		if (length < 0 || length > channelBuffer.readableBytes())
+			throw new IllegalArgumentException("Invalid string length " + length);
+
+		final int index = channelBuffer.readerIndex();
+		channelBuffer.skipBytes(length);
+		if (length == 0)
+			return "";
+
+		if (length <= MAX_CACHED_LENGTH) {
+			int hash = 0;
+			boolean ascii = true;
+			for (int i = 0; i < length; i++) {
+				final byte b = channelBuffer.getByte(index + i);
+				ascii &= (b >= 0);
+				hash = 31 * hash + b;
+			}
+			if (ascii) {
+				final int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+				final String cached = cache[slot];
+				if (cached != null && asciiEquals(cached, channelBuffer, index, length))
+					return cached;
+				final String decoded = decode(channelBuffer, index, length);
+				cache[slot] = decoded;
+				return decoded;
+			}
+		}
+		return decode(channelBuffer, index, length);
+	}
+
+	private static boolean asciiEquals(String string, ChannelBuffer channelBuffer, int index, int length) {
+		if (string.length() != length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (string.charAt(i) != channelBuffer.getByte(index + i))
+				return false;
+		}
+		return true;
+	}
+
+	private static String decode(ChannelBuffer channelBuffer, int index, int length) {
+		if (channelBuffer.hasArray()) {
+			return new String(channelBuffer.array(), channelBuffer.arrayOffset() + index, length, UTF8);
+		}
+		return channelBuffer.toString(index, length, UTF8);
+	}
+}
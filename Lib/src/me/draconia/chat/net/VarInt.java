@@ -0,0 +1,56 @@
+package me.draconia.chat.net;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * LEB128 encoding: 7 bits per byte, high bit set on all but the last byte.
+ * Signed values go through zigzag encoding first so small negative numbers stay short too.
+ */
+public class VarInt {
+	public static int readInt(ChannelBuffer channelBuffer) {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			final byte b = channelBuffer.readByte();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IllegalArgumentException("VarInt too long");
+	}
+
+	public static void writeInt(ChannelBuffer channelBuffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			channelBuffer.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		channelBuffer.writeByte(value);
+	}
+
+	public static long readLong(ChannelBuffer channelBuffer) {
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			final byte b = channelBuffer.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IllegalArgumentException("VarLong too long");
+	}
+
+	public static void writeLong(ChannelBuffer channelBuffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			channelBuffer.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		channelBuffer.writeByte((int) value);
+	}
+
+	public static long readSignedLong(ChannelBuffer channelBuffer) {
+		final long zigzag = readLong(channelBuffer);
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+
+	public static void writeSignedLong(ChannelBuffer channelBuffer, long value) {
+		writeLong(channelBuffer, (value << 1) ^ (value >> 63));
+	}
+}
@@ -1,15 +1,20 @@
 package me.draconia.chat.net.packets;
 
+import me.draconia.chat.net.ConnectionState;
+import me.draconia.chat.net.PacketBufferAllocator;
+import me.draconia.chat.net.TextCompression;
+import me.draconia.chat.net.Utf8Codec;
+import me.draconia.chat.net.VarInt;
+import me.draconia.chat.types.*;
 import me.draconia.chat.util.IntUtils;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
 
-import java.io.UnsupportedEncodingException;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
 import java.util.List;
 
 public abstract class Packet {
@@ -32,7 +37,14 @@ public abstract class Packet {
 
 	private static final Constructor<? extends Packet>[] READABLE_PACKETS = new Constructor[256];
 
+	//Packets written by the server refer to users and channels by symbol ID, packets written by clients by name
+	private static boolean writeSymbols = false;
+	private static boolean readSymbols = false;
+
 	public static void initialize(Side receivingSide) {
+		writeSymbols = (receivingSide == Side.CLIENT_TO_SERVER);
+		readSymbols = (receivingSide == Side.SERVER_TO_CLIENT);
+
 		List<Class<? extends Packet>> packets = IntUtils.getSubClasses(Packet.class, Packet.class.getPackage().getName());
 		for (Class<? extends Packet> packet : packets) {
 			if (packet.isAnnotationPresent(PacketSide.class) && !packet.getAnnotation(PacketSide.class).value().equals(receivingSide))
@@ -53,6 +65,14 @@ public abstract class Packet {
 	private boolean idSet = false;
 	private byte id;
 
+	//Per-connection state of the connection this packet was read from
+	protected ConnectionState connectionState;
+
+	//Users and channels referenced by symbol in the last encoding, so the sender can define them first. Guarded by this,
+	//each encoding gets new lists so the ones handed out never change
+	private ArrayList<User> symbolUsers = new ArrayList<User>(0);
+	private ArrayList<Channel> symbolChannels = new ArrayList<Channel>(0);
+
 	protected Packet() {
 
 	}
@@ -71,47 +91,200 @@ public abstract class Packet {
 
 	/* STRING */
 	protected static String readString(ChannelBuffer channelBuffer) {
+		return Utf8Codec.read(channelBuffer);
+	}
+
+	protected static void writeString(ChannelBuffer channelBuffer, String string) {
+		Utf8Codec.write(channelBuffer, string);
+	}
+
+	//Fixed 4-byte length prefix. Only for the login handshake and disconnects, which peers on other protocol versions must still be able to read
+	protected static String readFixedString(ChannelBuffer channelBuffer) {
 		int strLen = channelBuffer.readInt();
+		if (strLen < 0 || strLen > channelBuffer.readableBytes())
+			throw new IllegalArgumentException("Invalid string length " + strLen);
 		byte[] strBytes = new byte[strLen];
 		channelBuffer.readBytes(strBytes);
-		try {
-			return new String(strBytes, "UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException(e);
-		}
+		return new String(strBytes, Utf8Codec.UTF8);
 	}
 
-	protected static void writeString(ChannelBuffer channelBuffer, String string) {
-		byte[] strBytes;
-		try {
-			strBytes = string.getBytes("UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException(e);
-		}
+	protected static void writeFixedString(ChannelBuffer channelBuffer, String string) {
+		byte[] strBytes = string.getBytes(Utf8Codec.UTF8);
 		channelBuffer.writeInt(strBytes.length);
 		channelBuffer.writeBytes(strBytes);
 	}
 
 	protected static String readCompressedString(ChannelBuffer channelBuffer) {
-		int strLen = channelBuffer.readInt();
-		byte[] strBytes = new byte[strLen];
-		channelBuffer.readBytes(strBytes);
-		try {
-			return new String(strBytes, "UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException(e);
-		}
+		return TextCompression.read(channelBuffer);
 	}
 
 	protected static void writeCompressedString(ChannelBuffer channelBuffer, String string) {
-		byte[] strBytes;
-		try {
-			strBytes = string.getBytes("UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException(e);
+		TextCompression.write(channelBuffer, string);
+	}
+
+	/* VARINT */
+	protected static int readVarInt(ChannelBuffer channelBuffer) {
+		return VarInt.readInt(channelBuffer);
+	}
+
+	protected static void writeVarInt(ChannelBuffer channelBuffer, int value) {
+		VarInt.writeInt(channelBuffer, value);
+	}
+
+	protected static long readVarLong(ChannelBuffer channelBuffer) {
+		return VarInt.readLong(channelBuffer);
+	}
+
+	protected static void writeVarLong(ChannelBuffer channelBuffer, long value) {
+		VarInt.writeLong(channelBuffer, value);
+	}
+
+	//Length of an array that follows, each element taking at least minElementSize bytes. Checked against the rest of the frame before anything is allocated for it
+	protected static int readCount(ChannelBuffer channelBuffer, int minElementSize) {
+		final int count = readVarInt(channelBuffer);
+		if (count < 0 || count > channelBuffer.readableBytes() / minElementSize)
+			throw new IllegalArgumentException("Invalid count " + count);
+		return count;
+	}
+
+	/* TIMESTAMP */
+	//Timestamps are sent as the signed distance to this, which the server announces in PacketLoginResponse
+	public static final long TIMESTAMP_EPOCH = System.currentTimeMillis();
+
+	protected long readTimestamp(ChannelBuffer channelBuffer) {
+		return connectionState.timestampEpoch + VarInt.readSignedLong(channelBuffer);
+	}
+
+	protected static void writeTimestamp(ChannelBuffer channelBuffer, long timestamp) {
+		VarInt.writeSignedLong(channelBuffer, timestamp - TIMESTAMP_EPOCH);
+	}
+
+	/* SYMBOLS */
+	protected User readUser(ChannelBuffer channelBuffer) {
+		if (readSymbols)
+			return connectionState.getUser(readVarInt(channelBuffer));
+		return UserFactory.instance.getFromLogin(readString(channelBuffer));
+	}
+
+	protected void writeUser(ChannelBuffer channelBuffer, User user) {
+		if (writeSymbols) {
+			writeVarInt(channelBuffer, user.getSymbolID());
+			symbolUsers.add(user);
+		} else {
+			writeString(channelBuffer, user.login);
+		}
+	}
+
+	protected Channel readChannel(ChannelBuffer channelBuffer) {
+		if (readSymbols)
+			return connectionState.getChannel(readVarInt(channelBuffer));
+		return ChannelFactory.instance.createFromName(readString(channelBuffer));
+	}
+
+	protected void writeChannel(ChannelBuffer channelBuffer, Channel channel) {
+		if (writeSymbols) {
+			writeVarInt(channelBuffer, channel.getSymbolID());
+			symbolChannels.add(channel);
+		} else {
+			writeString(channelBuffer, channel.name);
 		}
-		channelBuffer.writeInt(strBytes.length);
-		channelBuffer.writeBytes(strBytes);
+	}
+
+	/**
+	 * Users referenced by symbol ID in the current encoding. Only valid after {@link #getData()}, must not be modified.
+	 */
+	public synchronized List<User> getSymbolUsers() {
+		return symbolUsers;
+	}
+
+	/**
+	 * Channels referenced by symbol ID in the current encoding. Only valid after {@link #getData()}, must not be modified.
+	 */
+	public synchronized List<Channel> getSymbolChannels() {
+		return symbolChannels;
+	}
+
+	/* MESSAGE */
+	private static final byte FLAG_CONTEXT = 3;
+	private static final byte CONTEXT_GENERIC = 0;
+	private static final byte CONTEXT_USER = 1;
+	private static final byte CONTEXT_CHANNEL = 2;
+	private static final byte CONTEXT_UNUSED = 3;
+
+	private static final byte FLAG_CONTENTS_COMPRESSED = 4;
+	private static final byte FLAG_BINARY = 8;
+
+	//Contents, context and type. Sender, timestamp and sequence number are up to the packet
+	protected void writeMessage(ChannelBuffer channelBuffer, Message message) {
+		byte messageFlags = 0;
+
+		final int flagsIndex = channelBuffer.writerIndex();
+		channelBuffer.writeByte(0);
+
+		if (message instanceof TextMessage) {
+			TextMessage textMessage = (TextMessage) message;
+			if (textMessage.compressContents) {
+				messageFlags |= FLAG_CONTENTS_COMPRESSED;
+				writeCompressedString(channelBuffer, textMessage.content);
+			} else {
+				writeString(channelBuffer, textMessage.content);
+			}
+		} else if (message instanceof BinaryMessage) {
+			messageFlags |= FLAG_BINARY;
+			BinaryMessage binaryMessage = (BinaryMessage) message;
+			writeVarInt(channelBuffer, binaryMessage.content.length);
+			channelBuffer.writeBytes(binaryMessage.content);
+		}
+
+		if (message.context instanceof User) {
+			messageFlags |= CONTEXT_USER;
+			writeUser(channelBuffer, (User) message.context);
+		} else if (message.context instanceof Channel) {
+			messageFlags |= CONTEXT_CHANNEL;
+			writeChannel(channelBuffer, (Channel) message.context);
+		} else {
+			messageFlags |= CONTEXT_GENERIC;
+		}
+
+		channelBuffer.writeByte(message.type);
+
+		channelBuffer.setByte(flagsIndex, messageFlags);
+	}
+
+	protected Message readMessage(ChannelBuffer channelBuffer) {
+		final Message message;
+		byte messageFlags = channelBuffer.readByte();
+
+		if ((messageFlags & FLAG_BINARY) == FLAG_BINARY) {
+			BinaryMessage binaryMessage = new BinaryMessage();
+			binaryMessage.content = new byte[readCount(channelBuffer, 1)];
+			channelBuffer.readBytes(binaryMessage.content);
+			message = binaryMessage;
+		} else {
+			TextMessage textMessage = new TextMessage();
+			if ((messageFlags & FLAG_CONTENTS_COMPRESSED) == FLAG_CONTENTS_COMPRESSED) {
+				textMessage.compressContents = true;
+				textMessage.content = readCompressedString(channelBuffer);
+			} else {
+				textMessage.content = readString(channelBuffer);
+			}
+			message = textMessage;
+		}
+
+		switch (messageFlags & FLAG_CONTEXT) {
+			case CONTEXT_USER:
+				message.context = readUser(channelBuffer);
+				break;
+			case CONTEXT_CHANNEL:
+				message.context = readChannel(channelBuffer);
+				break;
+			case CONTEXT_GENERIC:
+				message.context = GenericContext.instance;
+				break;
+		}
+
+		message.type = channelBuffer.readByte();
+		return message;
 	}
 
 	/* BOOLEAN */
@@ -124,10 +297,11 @@ public abstract class Packet {
 	}
 
 
-	public static Packet createPacketFrom(byte id, ChannelBuffer channelBuffer) {
+	public static Packet createPacketFrom(byte id, ChannelBuffer channelBuffer, ConnectionState connectionState) {
 		try {
 			Packet packet = READABLE_PACKETS[id].newInstance();
 			packet.id = id;
+			packet.connectionState = connectionState;
 			packet.decode(channelBuffer);
 			return packet;
 		} catch (Exception e) {
@@ -137,6 +311,9 @@ public abstract class Packet {
 		}
 	}
 
+	//Size of the last encoding of each packet ID, used to size the next buffer so it doesn't have to grow
+	private static final int[] LAST_ENCODED_SIZES = new int[256];
+
 	private boolean isDirty = true;
 	private ChannelBuffer packetBuffer = null;
 
@@ -144,21 +321,40 @@ public abstract class Packet {
 		isDirty = true;
 	}
 
-	public ChannelBuffer getData() {
+	/**
+	 * Returns the encoded packet. The buffer is cached and shared, so anything that hands it to a
+	 * channel (which moves its reader index) must write a duplicate of it instead.
+	 */
+	public synchronized ChannelBuffer getData() {
 		if (isDirty) {
 			isDirty = false;
-			synchronized (this) {
-				packetBuffer = ChannelBuffers.dynamicBuffer(64);
-				packetBuffer.writerIndex(5);
-				this.encode(packetBuffer);
-				packetBuffer.markWriterIndex();
-				int length = packetBuffer.writerIndex() - 5;
-				packetBuffer.writerIndex(0);
-				packetBuffer.writeByte(this.getID());
-				packetBuffer.writeInt(length);
-				packetBuffer.resetWriterIndex();
-			}
+			final int id = this.getID() & 0xFF;
+			final int predictedSize = LAST_ENCODED_SIZES[id];
+			packetBuffer = PacketBufferAllocator.instance.allocate(predictedSize > 0 ? predictedSize : 64);
+			packetBuffer.writerIndex(5);
+			symbolUsers = new ArrayList<User>(0);
+			symbolChannels = new ArrayList<Channel>(0);
+			this.encode(packetBuffer);
+			packetBuffer.markWriterIndex();
+			int length = packetBuffer.writerIndex() - 5;
+			packetBuffer.writerIndex(0);
+			packetBuffer.writeByte(id);
+			packetBuffer.writeInt(length);
+			packetBuffer.resetWriterIndex();
+			LAST_ENCODED_SIZES[id] = length + 5;
 		}
 		return packetBuffer;
 	}
+
+	/**
+	 * Returns the encoded buffer to the {@link PacketBufferAllocator}. Only call this once every
+	 * write of {@link #getData()} has completed; the packet re-encodes if it is sent again.
+	 */
+	public synchronized void release() {
+		if (packetBuffer == null)
+			return;
+		PacketBufferAllocator.instance.release(packetBuffer);
+		packetBuffer = null;
+		isDirty = true;
+	}
 }
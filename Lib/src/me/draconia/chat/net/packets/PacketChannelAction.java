@@ -2,9 +2,7 @@ package me.draconia.chat.net.packets;
 
 import me.draconia.chat.net.Packets;
 import me.draconia.chat.types.Channel;
-import me.draconia.chat.types.ChannelFactory;
 import me.draconia.chat.types.User;
-import me.draconia.chat.types.UserFactory;
 import org.jboss.netty.buffer.ChannelBuffer;
 
 //When a client sends this packet, we discard the user!
@@ -17,18 +15,26 @@ public class PacketChannelAction extends Packet {
 	public User user;
 	public Channel channel;
 	public byte action;
+	//Server to client: the channel's membership epoch and sequence number after this join or leave (0 if it isn't one).
+	//Client to server, on joins: the epoch and sequence number of the membership the client already has, to resync from (0 if none)
+	public int epoch;
+	public int seq;
 
 	@Override
 	protected void decode(ChannelBuffer channelBuffer) {
-		user = UserFactory.instance.getFromLogin(readString(channelBuffer));
-		channel = ChannelFactory.instance.createFromName(readString(channelBuffer));
+		user = readUser(channelBuffer);
+		channel = readChannel(channelBuffer);
 		action = channelBuffer.readByte();
+		epoch = readVarInt(channelBuffer);
+		seq = readVarInt(channelBuffer);
 	}
 
 	@Override
 	protected void encode(ChannelBuffer channelBuffer) {
-		writeString(channelBuffer, user.login);
-		writeString(channelBuffer, channel.name);
+		writeUser(channelBuffer, user);
+		writeChannel(channelBuffer, channel);
 		channelBuffer.writeByte(action);
+		writeVarInt(channelBuffer, epoch);
+		writeVarInt(channelBuffer, seq);
 	}
 }
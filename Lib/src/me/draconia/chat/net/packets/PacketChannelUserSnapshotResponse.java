@@ -2,34 +2,79 @@ package me.draconia.chat.net.packets;
 
 import me.draconia.chat.net.Packets;
 import me.draconia.chat.types.Channel;
-import me.draconia.chat.types.ChannelFactory;
 import me.draconia.chat.types.User;
-import me.draconia.chat.types.UserFactory;
 import org.jboss.netty.buffer.ChannelBuffer;
 
+/**
+ * Channel membership as of membership sequence number seq, either as one page of the full member list
+ * (users starting at offset, more is set on all but the last page) or, when incremental, as the users who joined
+ * and left since the sequence number the client asked to resync from.
+ * After this the client gets a PacketChannelAction for every change, numbered from seq + 1.
+ */
 @Packet.PacketID(Packets.CHANNEL_USER_SNAPSHOT)
 @Packet.PacketSide(Packet.Side.SERVER_TO_CLIENT)
 public class PacketChannelUserSnapshotResponse extends Packet {
 	public Channel channel;
+	//Changes whenever the channel is recreated, sequence numbers of different epochs are unrelated
+	public int epoch;
+	public int seq;
+	public boolean incremental;
+
+	//Full snapshots only
+	public int offset;
+	public boolean more;
+
+	//Members, or the users who joined when incremental
 	public User[] users;
+	//Incremental only
+	public User[] leftUsers;
 
 	@Override
 	protected void decode(ChannelBuffer channelBuffer) {
-		channel = ChannelFactory.instance.createFromName(readString(channelBuffer));
-		byte count = channelBuffer.readByte();
-		users = new User[count];
-		for (byte i = 0; i < count; i++) {
-			users[i] = UserFactory.instance.getFromLogin(readString(channelBuffer));
+		channel = readChannel(channelBuffer);
+		epoch = readVarInt(channelBuffer);
+		seq = readVarInt(channelBuffer);
+		incremental = readBoolean(channelBuffer);
+		if (incremental) {
+			users = readUsers(channelBuffer);
+			leftUsers = readUsers(channelBuffer);
+		} else {
+			offset = readVarInt(channelBuffer);
+			more = readBoolean(channelBuffer);
+			users = readUsers(channelBuffer);
 		}
 	}
 
 	@Override
 	protected void encode(ChannelBuffer channelBuffer) {
-		writeString(channelBuffer, channel.name);
-		byte count = (byte) users.length;
-		channelBuffer.writeByte(count);
-		for (byte i = 0; i < count; i++) {
-			writeString(channelBuffer, users[i].login);
+		writeChannel(channelBuffer, channel);
+		writeVarInt(channelBuffer, epoch);
+		writeVarInt(channelBuffer, seq);
+		writeBoolean(channelBuffer, incremental);
+		if (incremental) {
+			writeUsers(channelBuffer, users);
+			writeUsers(channelBuffer, leftUsers);
+		} else {
+			writeVarInt(channelBuffer, offset);
+			writeBoolean(channelBuffer, more);
+			writeUsers(channelBuffer, users);
+		}
+	}
+
+	private User[] readUsers(ChannelBuffer channelBuffer) {
+		int count = readCount(channelBuffer, 1);
+		User[] ret = new User[count];
+		for (int i = 0; i < count; i++) {
+			ret[i] = readUser(channelBuffer);
+		}
+		return ret;
+	}
+
+	private void writeUsers(ChannelBuffer channelBuffer, User[] writeUsers) {
+		int count = writeUsers.length;
+		writeVarInt(channelBuffer, count);
+		for (int i = 0; i < count; i++) {
+			writeUser(channelBuffer, writeUsers[i]);
 		}
 	}
 }
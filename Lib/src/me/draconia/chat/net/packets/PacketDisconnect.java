@@ -9,11 +9,11 @@ public class PacketDisconnect extends Packet {
 
 	@Override
 	protected void decode(ChannelBuffer channelBuffer) {
-		message = readString(channelBuffer);
+		message = readFixedString(channelBuffer);
 	}
 
 	@Override
 	protected void encode(ChannelBuffer channelBuffer) {
-		writeString(channelBuffer, message);
+		writeFixedString(channelBuffer, message);
 	}
 }
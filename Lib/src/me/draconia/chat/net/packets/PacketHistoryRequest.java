@@ -0,0 +1,34 @@
+package me.draconia.chat.net.packets;
+
+import me.draconia.chat.net.Packets;
+import me.draconia.chat.types.Channel;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Asks for up to limit messages of a channel's history, starting after sequence number sinceSeq or, if that is 0,
+ * after time sinceTimestamp (ms since 1970). Answered with PacketHistoryResponse pages.
+ */
+@Packet.PacketID(Packets.HISTORY)
+@Packet.PacketSide(Packet.Side.CLIENT_TO_SERVER)
+public class PacketHistoryRequest extends Packet {
+	public Channel channel;
+	public long sinceSeq;
+	public long sinceTimestamp;
+	public int limit;
+
+	@Override
+	protected void decode(ChannelBuffer channelBuffer) {
+		channel = readChannel(channelBuffer);
+		sinceSeq = readVarLong(channelBuffer);
+		sinceTimestamp = readVarLong(channelBuffer);
+		limit = readVarInt(channelBuffer);
+	}
+
+	@Override
+	protected void encode(ChannelBuffer channelBuffer) {
+		writeChannel(channelBuffer, channel);
+		writeVarLong(channelBuffer, sinceSeq);
+		writeVarLong(channelBuffer, sinceTimestamp);
+		writeVarInt(channelBuffer, limit);
+	}
+}
@@ -9,18 +9,29 @@ public class PacketLoginRequest extends Packet {
 	public int version;
 	public String username;
 	public String password;
+	public boolean compression; //Client supports stream compression
+	public long messageSession; //Random, picked once per client run; the seq of its messages counts within it
+	public byte[] resumeToken = new byte[0]; //From the last PacketLoginResponse, to take over that session instead of starting a new one
 
 	@Override
 	protected void decode(ChannelBuffer channelBuffer) {
 		version = channelBuffer.readInt();
-		username = readString(channelBuffer);
-		password = readString(channelBuffer);
+		username = readFixedString(channelBuffer);
+		password = readFixedString(channelBuffer);
+		compression = readBoolean(channelBuffer);
+		messageSession = channelBuffer.readLong();
+		resumeToken = new byte[readCount(channelBuffer, 1)];
+		channelBuffer.readBytes(resumeToken);
 	}
 
 	@Override
 	protected void encode(ChannelBuffer channelBuffer) {
 		channelBuffer.writeInt(version);
-		writeString(channelBuffer, username);
-		writeString(channelBuffer, password);
+		writeFixedString(channelBuffer, username);
+		writeFixedString(channelBuffer, password);
+		writeBoolean(channelBuffer, compression);
+		channelBuffer.writeLong(messageSession);
+		writeVarInt(channelBuffer, resumeToken.length);
+		channelBuffer.writeBytes(resumeToken);
 	}
 }
@@ -10,20 +10,38 @@ public class PacketLoginResponse extends Packet {
 	public boolean success;
 	public String message; //Error on fail, MOTD on success
 	public String nickname;
+	public boolean compression; //Stream compression is on for everything after this packet
+	public long timestampEpoch = TIMESTAMP_EPOCH;
+	public long lastMessageSeq; //Last message of the login's messageSession the server got, to be resent after it
+	public boolean resumed; //The previous session was taken over, its channels and subscriptions are still there
+	public byte[] resumeToken = new byte[0]; //For the next login to resume this session with
 
 	@Override
 	protected void decode(ChannelBuffer channelBuffer) {
 		version = channelBuffer.readInt();
 		success = readBoolean(channelBuffer);
-		message = readString(channelBuffer);
-		nickname = readString(channelBuffer);
+		message = readFixedString(channelBuffer);
+		nickname = readFixedString(channelBuffer);
+		compression = readBoolean(channelBuffer);
+		timestampEpoch = channelBuffer.readLong();
+		connectionState.timestampEpoch = timestampEpoch;
+		lastMessageSeq = readVarLong(channelBuffer);
+		resumed = readBoolean(channelBuffer);
+		resumeToken = new byte[readCount(channelBuffer, 1)];
+		channelBuffer.readBytes(resumeToken);
 	}
 
 	@Override
 	protected void encode(ChannelBuffer channelBuffer) {
 		channelBuffer.writeInt(version);
 		writeBoolean(channelBuffer, success);
-		writeString(channelBuffer, message);
-		writeString(channelBuffer, nickname);
+		writeFixedString(channelBuffer, message);
+		writeFixedString(channelBuffer, nickname);
+		writeBoolean(channelBuffer, compression);
+		channelBuffer.writeLong(timestampEpoch);
+		writeVarLong(channelBuffer, lastMessageSeq);
+		writeBoolean(channelBuffer, resumed);
+		writeVarInt(channelBuffer, resumeToken.length);
+		channelBuffer.writeBytes(resumeToken);
 	}
 }
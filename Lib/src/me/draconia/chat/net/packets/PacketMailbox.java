@@ -0,0 +1,46 @@
+package me.draconia.chat.net.packets;
+
+import me.draconia.chat.net.Packets;
+import me.draconia.chat.types.Message;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * One page of the direct messages that were sent to the user while it was offline, oldest first. A message's seq is its
+ * ID in the user's mailbox; the server keeps redelivering messages on every login until they are acknowledged with a
+ * PacketMailboxAck. more is set on all but the last page.
+ */
+@Packet.PacketID(Packets.MAILBOX)
+@Packet.PacketSide(Packet.Side.SERVER_TO_CLIENT)
+public class PacketMailbox extends Packet {
+	public boolean more;
+	public Message[] messages;
+
+	@Override
+	protected void decode(ChannelBuffer channelBuffer) {
+		more = readBoolean(channelBuffer);
+		//Flags, content, type, sender, timestamp and seq
+		int count = readCount(channelBuffer, 6);
+		messages = new Message[count];
+		for (int i = 0; i < count; i++) {
+			final Message message = readMessage(channelBuffer);
+			message.from = readUser(channelBuffer);
+			message.timestamp = readTimestamp(channelBuffer);
+			message.seq = readVarLong(channelBuffer);
+			messages[i] = message;
+		}
+	}
+
+	@Override
+	protected void encode(ChannelBuffer channelBuffer) {
+		writeBoolean(channelBuffer, more);
+		int count = messages.length;
+		writeVarInt(channelBuffer, count);
+		for (int i = 0; i < count; i++) {
+			final Message message = messages[i];
+			writeMessage(channelBuffer, message);
+			writeUser(channelBuffer, message.from);
+			writeTimestamp(channelBuffer, message.timestamp);
+			writeVarLong(channelBuffer, message.seq);
+		}
+	}
+}
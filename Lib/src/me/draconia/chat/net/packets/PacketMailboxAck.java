@@ -0,0 +1,23 @@
+package me.draconia.chat.net.packets;
+
+import me.draconia.chat.net.Packets;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Acknowledges every message of the user's mailbox up to and including ID upToID, so the server can drop them.
+ */
+@Packet.PacketID(Packets.MAILBOX)
+@Packet.PacketSide(Packet.Side.CLIENT_TO_SERVER)
+public class PacketMailboxAck extends Packet {
+	public long upToID;
+
+	@Override
+	protected void decode(ChannelBuffer channelBuffer) {
+		upToID = readVarLong(channelBuffer);
+	}
+
+	@Override
+	protected void encode(ChannelBuffer channelBuffer) {
+		writeVarLong(channelBuffer, upToID);
+	}
+}
@@ -0,0 +1,24 @@
+package me.draconia.chat.net.packets;
+
+import me.draconia.chat.net.Packets;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Acknowledges every PacketMessageToServer up to and including seq. Sent in batches, at the latest once half of
+ * ChatLib.MESSAGE_WINDOW is unacknowledged.
+ */
+@Packet.PacketID(Packets.MESSAGE_ACK)
+@Packet.PacketSide(Packet.Side.SERVER_TO_CLIENT)
+public class PacketMessageAck extends Packet {
+	public long seq;
+
+	@Override
+	protected void decode(ChannelBuffer channelBuffer) {
+		seq = readVarLong(channelBuffer);
+	}
+
+	@Override
+	protected void encode(ChannelBuffer channelBuffer) {
+		writeVarLong(channelBuffer, seq);
+	}
+}
@@ -1,7 +1,6 @@
 package me.draconia.chat.net.packets;
 
 import me.draconia.chat.net.Packets;
-import me.draconia.chat.types.UserFactory;
 import org.jboss.netty.buffer.ChannelBuffer;
 
 @Packet.PacketID(Packets.MESSAGE)
@@ -10,14 +9,16 @@ public class PacketMessageToClient extends PacketMessageToServer {
 	@Override
 	protected void encode(ChannelBuffer channelBuffer) {
 		super.encode(channelBuffer);
-		writeString(channelBuffer, message.from.login);
-		channelBuffer.writeLong(message.timestamp);
+		writeUser(channelBuffer, message.from);
+		writeTimestamp(channelBuffer, message.timestamp);
+		writeVarLong(channelBuffer, message.seq);
 	}
 
 	@Override
 	protected void decode(ChannelBuffer channelBuffer) {
 		super.decode(channelBuffer);
-		message.from = UserFactory.instance.getFromLogin(readString(channelBuffer));
-		message.timestamp = channelBuffer.readLong();
+		message.from = readUser(channelBuffer);
+		message.timestamp = readTimestamp(channelBuffer);
+		message.seq = readVarLong(channelBuffer);
 	}
 }
@@ -0,0 +1,49 @@
+package me.draconia.chat.net.packets;
+
+import me.draconia.chat.net.Packets;
+import me.draconia.chat.types.Channel;
+import me.draconia.chat.types.ChannelFactory;
+import me.draconia.chat.types.User;
+import me.draconia.chat.types.UserFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+//Sent ahead of any packet that references a user or channel this connection hasn't seen the symbol ID for yet
+@Packet.PacketID(Packets.SYMBOL_DEFINITION)
+@Packet.PacketSide(Packet.Side.SERVER_TO_CLIENT)
+public class PacketSymbolDefinition extends Packet {
+	public User[] users;
+	public Channel[] channels;
+
+	@Override
+	protected void decode(ChannelBuffer channelBuffer) {
+		//Symbol ID and name
+		int count = readCount(channelBuffer, 2);
+		users = new User[count];
+		for (int i = 0; i < count; i++) {
+			final int symbolID = readVarInt(channelBuffer);
+			users[i] = UserFactory.instance.getFromLogin(readString(channelBuffer));
+			connectionState.defineUser(symbolID, users[i]);
+		}
+		count = readCount(channelBuffer, 2);
+		channels = new Channel[count];
+		for (int i = 0; i < count; i++) {
+			final int symbolID = readVarInt(channelBuffer);
+			channels[i] = ChannelFactory.instance.createFromName(readString(channelBuffer));
+			connectionState.defineChannel(symbolID, channels[i]);
+		}
+	}
+
+	@Override
+	protected void encode(ChannelBuffer channelBuffer) {
+		writeVarInt(channelBuffer, users.length);
+		for (User user : users) {
+			writeVarInt(channelBuffer, user.getSymbolID());
+			writeString(channelBuffer, user.login);
+		}
+		writeVarInt(channelBuffer, channels.length);
+		for (Channel channel : channels) {
+			writeVarInt(channelBuffer, channel.getSymbolID());
+			writeString(channelBuffer, channel.name);
+		}
+	}
+}
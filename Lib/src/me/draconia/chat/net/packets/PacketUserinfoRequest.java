@@ -13,28 +13,28 @@ public class PacketUserinfoRequest extends Packet {
 
 	@Override
 	protected void decode(ChannelBuffer channelBuffer) {
-		short count = channelBuffer.readShort();
+		int count = readCount(channelBuffer, 1);
 		users_subscribe = new User[count];
-		for (short i = 0; i < count; i++) {
+		for (int i = 0; i < count; i++) {
 			users_subscribe[i] = UserFactory.instance.getFromLogin(readString(channelBuffer));
 		}
-		count = channelBuffer.readShort();
+		count = readCount(channelBuffer, 1);
 		users_unsubscribe = new User[count];
-		for (short i = 0; i < count; i++) {
+		for (int i = 0; i < count; i++) {
 			users_unsubscribe[i] = UserFactory.instance.getFromLogin(readString(channelBuffer));
 		}
 	}
 
 	@Override
 	protected void encode(ChannelBuffer channelBuffer) {
-		short count = (short) users_subscribe.length;
-		channelBuffer.writeShort(count);
-		for (short i = 0; i < count; i++) {
+		int count = users_subscribe.length;
+		writeVarInt(channelBuffer, count);
+		for (int i = 0; i < count; i++) {
 			writeString(channelBuffer, users_subscribe[i].login);
 		}
-		count = (short) users_unsubscribe.length;
-		channelBuffer.writeShort(count);
-		for (short i = 0; i < count; i++) {
+		count = users_unsubscribe.length;
+		writeVarInt(channelBuffer, count);
+		for (int i = 0; i < count; i++) {
 			writeString(channelBuffer, users_unsubscribe[i].login);
 		}
 	}
@@ -2,7 +2,6 @@ package me.draconia.chat.net.packets;
 
 import me.draconia.chat.net.Packets;
 import me.draconia.chat.types.User;
-import me.draconia.chat.types.UserFactory;
 import org.jboss.netty.buffer.ChannelBuffer;
 
 @Packet.PacketID(Packets.USERINFO)
@@ -14,12 +13,13 @@ public class PacketUserinfoResponse extends Packet {
 
 	@Override
 	protected void decode(ChannelBuffer channelBuffer) {
-		short count = channelBuffer.readShort();
+		//User, nickname and state
+		int count = readCount(channelBuffer, 3);
 		users = new User[count];
 		nicknames = new String[count];
 		states = new byte[count];
-		for (short i = 0; i < count; i++) {
-			users[i] = UserFactory.instance.getFromLogin(readString(channelBuffer));
+		for (int i = 0; i < count; i++) {
+			users[i] = readUser(channelBuffer);
 			nicknames[i] = readString(channelBuffer);
 			states[i] = channelBuffer.readByte();
 		}
@@ -27,10 +27,10 @@ public class PacketUserinfoResponse extends Packet {
 
 	@Override
 	protected void encode(ChannelBuffer channelBuffer) {
-		short count = (short) users.length;
-		channelBuffer.writeShort(count);
-		for (short i = 0; i < count; i++) {
-			writeString(channelBuffer, users[i].login);
+		int count = users.length;
+		writeVarInt(channelBuffer, count);
+		for (int i = 0; i < count; i++) {
+			writeUser(channelBuffer, users[i]);
 			writeString(channelBuffer, nicknames[i]);
 			channelBuffer.writeByte(states[i]);
 		}
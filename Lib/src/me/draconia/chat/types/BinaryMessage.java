@@ -10,6 +10,7 @@ public class BinaryMessage extends Message {
 	public static final byte TYPE_FILE_DATA = 11;
 	public static final byte TYPE_FILE_END = 12;
 	public static final byte TYPE_FILE_START_RESPONSE = 13;
+	public static final byte TYPE_FILE_CREDIT = 14; //[fileID][count]: the receiver is ready for count more TYPE_FILE_DATA, 0 once it got TYPE_FILE_END. Never OTR encrypted, the server counts them
 
 	public static final byte TYPE_TYPING_STATE = 20;
 
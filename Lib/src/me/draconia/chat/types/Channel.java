@@ -7,10 +7,42 @@ public abstract class Channel implements MessageContext, Serializable {
 
 	public String name;
 
+	private static final SymbolIDs symbolIDs = new SymbolIDs();
+	private transient volatile long symbol; //0 until assigned, also after deserialization
+
 	protected Channel(String name) {
 		this.name = name;
 	}
 
+	/**
+	 * Small ID standing in for this channel on the wire. Assigned on first use, and only handed out again once this
+	 * channel has been garbage collected.
+	 */
+	public int getSymbolID() {
+		return SymbolIDs.id(getSymbol());
+	}
+
+	/**
+	 * Tells this channel apart from earlier holders of its symbol ID.
+	 */
+	public int getSymbolGeneration() {
+		return SymbolIDs.generation(getSymbol());
+	}
+
+	private long getSymbol() {
+		long ret = symbol;
+		if (ret == 0) {
+			synchronized (this) {
+				ret = symbol;
+				if (ret == 0) {
+					ret = symbolIDs.allocate(this);
+					symbol = ret;
+				}
+			}
+		}
+		return ret;
+	}
+
 	@Override
 	public int hashCode() {
 		return name.hashCode();
@@ -8,4 +8,6 @@ public abstract class Message {
 	public User from;
 	public byte type = TYPE_DEFAULT;
 	public long timestamp = System.currentTimeMillis();
+	//Position in its channel's history, 0 if it isn't kept in one
+	public long seq = 0;
 }
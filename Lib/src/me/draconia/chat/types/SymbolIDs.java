@@ -0,0 +1,70 @@
+package me.draconia.chat.types;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+/**
+ * Hands out the symbol IDs of users or channels. The ID of one that got garbage collected is handed out again, so IDs
+ * stay as small as the number of users or channels in memory: until it is collected everything still referring to it
+ * by ID (like a packet being written) also still holds it. Each time an ID is handed out its generation goes up, which
+ * tells a connection that knew the ID as someone else apart from one that already knows it as this one.
+ * Symbols are packed as [generation:int][id:int] in a long.
+ */
+class SymbolIDs {
+	private static class SymbolReference extends WeakReference<Object> {
+		final int id;
+
+		SymbolReference(Object owner, int id, ReferenceQueue<Object> queue) {
+			super(owner, queue);
+			this.id = id;
+		}
+	}
+
+	private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+	//All guarded by this. References keep themselves reachable until they are enqueued
+	private SymbolReference[] references = new SymbolReference[64];
+	private int[] generations = new int[64];
+	private int[] freeIDs = new int[16];
+	private int freeCount = 0;
+	private int nextID = 1;
+
+	synchronized long allocate(Object owner) {
+		Reference<?> reference;
+		while ((reference = collected.poll()) != null) {
+			final int id = ((SymbolReference) reference).id;
+			references[id] = null;
+			if (freeCount == freeIDs.length) {
+				freeIDs = Arrays.copyOf(freeIDs, freeCount * 2);
+			}
+			freeIDs[freeCount++] = id;
+		}
+
+		final int id;
+		if (freeCount > 0) {
+			id = freeIDs[--freeCount];
+		} else {
+			id = nextID++;
+			if (id == references.length) {
+				references = Arrays.copyOf(references, id * 2);
+				generations = Arrays.copyOf(generations, id * 2);
+			}
+		}
+		references[id] = new SymbolReference(owner, id, collected);
+		//0 stands for "not known" to connections
+		if (++generations[id] == 0) {
+			generations[id] = 1;
+		}
+		final int generation = generations[id];
+		return ((long) generation << 32) | id;
+	}
+
+	static int id(long symbol) {
+		return (int) symbol;
+	}
+
+	static int generation(long symbol) {
+		return (int) (symbol >>> 32);
+	}
+}
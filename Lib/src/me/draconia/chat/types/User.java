@@ -11,6 +11,9 @@ public abstract class User implements MessageContext, Serializable {
 	public static final byte STATE_OFFLINE = 0;
 
 	public final String login;
+
+	private static final SymbolIDs symbolIDs = new SymbolIDs();
+	private transient volatile long symbol; //0 until assigned, also after deserialization
 	protected String nickname;
 
 	protected static User SYSTEM;
@@ -25,6 +28,35 @@ public abstract class User implements MessageContext, Serializable {
 		this.login = login;
 	}
 
+	/**
+	 * Small ID standing in for this user on the wire. Assigned on first use, and only handed out again once this
+	 * user has been garbage collected.
+	 */
+	public int getSymbolID() {
+		return SymbolIDs.id(getSymbol());
+	}
+
+	/**
+	 * Tells this user apart from earlier holders of its symbol ID.
+	 */
+	public int getSymbolGeneration() {
+		return SymbolIDs.generation(getSymbol());
+	}
+
+	private long getSymbol() {
+		long ret = symbol;
+		if (ret == 0) {
+			synchronized (this) {
+				ret = symbol;
+				if (ret == 0) {
+					ret = symbolIDs.allocate(this);
+					symbol = ret;
+				}
+			}
+		}
+		return ret;
+	}
+
 	@Override
 	public int hashCode() {
 		return login.hashCode();
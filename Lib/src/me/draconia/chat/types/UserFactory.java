@@ -11,12 +11,24 @@ public abstract class UserFactory {
 	}
 
 	public final User getFromLogin(String login) {
-		login = login.toLowerCase();
+		if (!isLowerCase(login)) {
+			login = login.toLowerCase();
+		}
 		if (login.equals("[system]")) {
 			return User.SYSTEM;
 		}
 		return createFromLogin(login);
 	}
 
+	//Logins almost always arrive lowercased already, which this checks without allocating
+	private static boolean isLowerCase(String login) {
+		for (int i = 0; i < login.length(); i++) {
+			final char c = login.charAt(i);
+			if (c >= 0x80 || (c >= 'A' && c <= 'Z'))
+				return false;
+		}
+		return true;
+	}
+
 	protected abstract User createFromLogin(String login);
 }
@@ -0,0 +1,526 @@
+package me.draconia.chat.server;
+
+import me.draconia.chat.net.Utf8Codec;
+import me.draconia.chat.types.TextMessage;
+import me.draconia.chat.types.UserFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Message history of one channel. Every text message gets the next sequence number and is appended to a log split
+ * into segments of about {@link ServerConfig#HISTORY_SEGMENT_SIZE} bytes, of which the newest
+ * {@link ServerConfig#HISTORY_SEGMENTS} are kept. Each segment has a sparse index with the sequence number, timestamp
+ * and offset of every {@link ServerConfig#HISTORY_INDEX_INTERVAL}th record, so reads only scan a few records to find
+ * their starting point. The newest {@link ServerConfig#HISTORY_MEMORY_SIZE} messages are also kept in memory, which
+ * is where a client catching up after a short disconnect gets them from.
+ * Files: [firstSeq].log with records [bodyLength:int][crc32 of body:int][seq:long][timestamp:long][flags:byte]
+ * [type:byte][from:UTF][contentLength:int][content:UTF-8], and [firstSeq].idx with entries [seq:long][timestamp:long]
+ * [offset:long].
+ */
+public class ChannelHistory {
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int INDEX_ENTRY_SIZE = 24;
+	public static final int MAX_RECORD_LENGTH = 256 * 1024;
+
+	private static final byte FLAG_COMPRESS_CONTENTS = 1;
+
+	private static class Segment {
+		final long firstSeq;
+		final File logFile;
+		final File indexFile;
+
+		Segment(File directory, long firstSeq) {
+			this.firstSeq = firstSeq;
+			final String name = String.format("%020d", firstSeq);
+			this.logFile = new File(directory, name + ".log");
+			this.indexFile = new File(directory, name + ".idx");
+		}
+	}
+
+	private final File directory;
+
+	//All guarded by this
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+	private RandomAccessFile activeLogFile = null;
+	private RandomAccessFile activeIndexFile = null;
+	private long activeLength = 0;
+	private long activeRecords = 0;
+	private long lastSeq = 0;
+	private boolean dirty = false;
+	//Set if the files couldn't be opened, history is then only kept in memory
+	private boolean memoryOnly = false;
+	//Set once open() has recovered the history (or it has been given up on)
+	private volatile boolean opened = false;
+	//Tasks queued by MessageHistory#whenOpen that haven't run yet
+	final AtomicInteger waitingTasks = new AtomicInteger();
+
+	//Newest messages, oldest at ringStart
+	private final TextMessage[] ring = new TextMessage[Math.max(1, ServerConfig.HISTORY_MEMORY_SIZE)];
+	private int ringStart = 0;
+	private int ringSize = 0;
+
+	private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(256);
+	private final DataOutputStream recordStream = new DataOutputStream(recordBuffer);
+	private final CRC32 crc32 = new CRC32();
+
+	public ChannelHistory(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Finds the segments and recovers the newest one: its index is checked against the log, and anything after the
+	 * last complete record is cut off.
+	 */
+	public synchronized void open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+
+		final File[] logFiles = directory.listFiles();
+		final long[] firstSeqs = new long[logFiles == null ? 0 : logFiles.length];
+		int count = 0;
+		for (int i = 0; i < firstSeqs.length; i++) {
+			final String name = logFiles[i].getName();
+			if (!name.endsWith(".log")) continue;
+			try {
+				firstSeqs[count++] = Long.parseLong(name.substring(0, name.length() - 4));
+			} catch (NumberFormatException e) {
+				count--;
+			}
+		}
+		Arrays.sort(firstSeqs, 0, count);
+		for (int i = 0; i < count; i++) {
+			segments.add(new Segment(directory, firstSeqs[i]));
+		}
+
+		if (!segments.isEmpty()) {
+			final Segment active = segments.get(segments.size() - 1);
+			lastSeq = active.firstSeq - 1;
+			activeLogFile = new RandomAccessFile(active.logFile, "rw");
+			activeIndexFile = new RandomAccessFile(active.indexFile, "rw");
+			recover(active);
+		}
+		opened = true;
+	}
+
+	public boolean isOpen() {
+		return opened;
+	}
+
+	private void recover(Segment active) throws IOException {
+		final long logLength = activeLogFile.length();
+		final ByteBuffer index = readIndex(active);
+		int entries = index.capacity() / INDEX_ENTRY_SIZE;
+
+		//The index may have made it to disk without the log, so start from the last entry that points at its record
+		long offset = 0;
+		while (entries > 0) {
+			final long entrySeq = index.getLong((entries - 1) * INDEX_ENTRY_SIZE);
+			final long entryOffset = index.getLong((entries - 1) * INDEX_ENTRY_SIZE + 16);
+			final RecordReader recordReader = new RecordReader(active.logFile, entryOffset, logLength);
+			try {
+				if (recordReader.next() && recordReader.seq == entrySeq) {
+					offset = entryOffset;
+					break;
+				}
+			} finally {
+				recordReader.close();
+			}
+			entries--;
+		}
+		activeIndexFile.setLength((long) entries * INDEX_ENTRY_SIZE);
+
+		final int indexInterval = Math.max(1, ServerConfig.HISTORY_INDEX_INTERVAL);
+		long records = Math.max(0, entries - 1) * (long) indexInterval;
+		final RecordReader recordReader = new RecordReader(active.logFile, offset, logLength);
+		try {
+			while (recordReader.next()) {
+				//Entries lost along with the log tail are written again
+				if (records % indexInterval == 0 && records / indexInterval >= entries) {
+					writeIndexEntry(recordReader.seq, recordReader.timestamp, recordReader.recordOffset);
+					entries++;
+				}
+				lastSeq = recordReader.seq;
+				records++;
+			}
+		} finally {
+			recordReader.close();
+		}
+		activeLength = recordReader.offset;
+		activeRecords = records;
+		if (activeLength < logLength) {
+			System.out.println("[HISTORY] Dropping " + (logLength - activeLength) + " bytes of incomplete records at the end of " + active.logFile);
+			activeLogFile.setLength(activeLength);
+		}
+	}
+
+	private static ByteBuffer readIndex(Segment segment) throws IOException {
+		final RandomAccessFile randomAccessFile;
+		try {
+			randomAccessFile = new RandomAccessFile(segment.indexFile, "r");
+		} catch (IOException e) {
+			return ByteBuffer.allocate(0);
+		}
+		try {
+			final long length = randomAccessFile.length();
+			final byte[] bytes = new byte[(int) (length - length % INDEX_ENTRY_SIZE)];
+			randomAccessFile.readFully(bytes);
+			return ByteBuffer.wrap(bytes);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	//Offset in the segment's log of the last indexed record with a sequence number of at most seq, 0 if there is none
+	private static long findOffset(Segment segment, long seq) throws IOException {
+		final ByteBuffer index = readIndex(segment);
+		int low = 0;
+		int high = index.capacity() / INDEX_ENTRY_SIZE - 1;
+		long offset = 0;
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			if (index.getLong(middle * INDEX_ENTRY_SIZE) <= seq) {
+				offset = index.getLong(middle * INDEX_ENTRY_SIZE + 16);
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return offset;
+	}
+
+	public synchronized long getLastSeq() {
+		return lastSeq;
+	}
+
+	/**
+	 * Assigns the message the next sequence number and stores it. A message that fails to be written to disk is
+	 * still kept in memory.
+	 */
+	public synchronized void append(TextMessage message) {
+		message.seq = ++lastSeq;
+
+		if (ringSize == ring.length) {
+			ring[ringStart] = message;
+			ringStart = (ringStart + 1) % ring.length;
+		} else {
+			ring[(ringStart + ringSize) % ring.length] = message;
+			ringSize++;
+		}
+
+		if (memoryOnly)
+			return;
+		try {
+			recordBuffer.reset();
+			recordStream.writeLong(message.seq);
+			recordStream.writeLong(message.timestamp);
+			recordStream.writeByte(message.compressContents ? FLAG_COMPRESS_CONTENTS : 0);
+			recordStream.writeByte(message.type);
+			recordStream.writeUTF(message.from.login);
+			final byte[] content = message.content.getBytes(Utf8Codec.UTF8);
+			recordStream.writeInt(content.length);
+			recordStream.write(content);
+			if (recordBuffer.size() > MAX_RECORD_LENGTH)
+				return;
+			appendRecord(message.seq, message.timestamp);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void appendRecord(long seq, long timestamp) throws IOException {
+		final int length = recordBuffer.size();
+		if (activeLogFile == null || (activeLength > 0 && activeLength + RECORD_HEADER_SIZE + length > ServerConfig.HISTORY_SEGMENT_SIZE)) {
+			startSegment(seq);
+		}
+		final byte[] body = recordBuffer.toByteArray();
+		crc32.reset();
+		crc32.update(body, 0, length);
+		final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+		record.putInt(length);
+		record.putInt((int) crc32.getValue());
+		record.put(body);
+		record.flip();
+		final FileChannel logChannel = activeLogFile.getChannel();
+		final long offset = activeLength;
+		while (record.hasRemaining()) {
+			logChannel.write(record, offset + record.position());
+		}
+		if (activeRecords % Math.max(1, ServerConfig.HISTORY_INDEX_INTERVAL) == 0) {
+			writeIndexEntry(seq, timestamp, offset);
+		}
+		activeLength += record.capacity();
+		activeRecords++;
+		dirty = true;
+	}
+
+	private void writeIndexEntry(long seq, long timestamp, long offset) throws IOException {
+		final ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+		entry.putLong(seq);
+		entry.putLong(timestamp);
+		entry.putLong(offset);
+		entry.flip();
+		final FileChannel indexChannel = activeIndexFile.getChannel();
+		final long position = indexChannel.size();
+		while (entry.hasRemaining()) {
+			indexChannel.write(entry, position + entry.position());
+		}
+	}
+
+	private void startSegment(long firstSeq) throws IOException {
+		if (activeLogFile != null) {
+			//Older segments are never written again, so this is their last chance to get to disk
+			activeLogFile.getChannel().force(false);
+			activeIndexFile.getChannel().force(false);
+			activeLogFile.close();
+			activeIndexFile.close();
+			activeLogFile = null;
+			activeIndexFile = null;
+		}
+		final Segment segment = new Segment(directory, firstSeq);
+		activeLogFile = new RandomAccessFile(segment.logFile, "rw");
+		activeIndexFile = new RandomAccessFile(segment.indexFile, "rw");
+		activeLogFile.setLength(0);
+		activeIndexFile.setLength(0);
+		activeLength = 0;
+		activeRecords = 0;
+		segments.add(segment);
+
+		while (segments.size() > Math.max(1, ServerConfig.HISTORY_SEGMENTS)) {
+			final Segment oldest = segments.remove(0);
+			oldest.logFile.delete();
+			oldest.indexFile.delete();
+		}
+	}
+
+	/**
+	 * Up to limit messages with a sequence number greater than afterSeq, oldest first, stopping early once their
+	 * contents add up to maxBytes. The disk is read without holding the lock.
+	 */
+	public ArrayList<TextMessage> read(long afterSeq, int limit, int maxBytes) {
+		final ArrayList<TextMessage> ret = new ArrayList<TextMessage>();
+		final Segment[] readSegments;
+		final long readActiveLength;
+		synchronized (this) {
+			if (afterSeq >= lastSeq || limit <= 0)
+				return ret;
+			if (ringSize > 0 && ring[ringStart].seq <= afterSeq + 1) {
+				int bytes = 0;
+				for (int i = 0; i < ringSize && ret.size() < limit && bytes < maxBytes; i++) {
+					final TextMessage message = ring[(ringStart + i) % ring.length];
+					if (message.seq <= afterSeq) continue;
+					ret.add(message);
+					bytes += Utf8Codec.encodedLength(message.content);
+				}
+				return ret;
+			}
+			readSegments = segments.toArray(new Segment[segments.size()]);
+			readActiveLength = activeLength;
+		}
+
+		int first = 0;
+		for (int i = 0; i < readSegments.length; i++) {
+			if (readSegments[i].firstSeq <= afterSeq + 1) first = i;
+		}
+		int bytes = 0;
+		for (int i = first; i < readSegments.length && ret.size() < limit && bytes < maxBytes; i++) {
+			final Segment segment = readSegments[i];
+			final boolean active = (i == readSegments.length - 1);
+			try {
+				final long offset = (segment.firstSeq <= afterSeq + 1) ? findOffset(segment, afterSeq + 1) : 0;
+				final RecordReader recordReader = new RecordReader(segment.logFile, offset, active ? readActiveLength : segment.logFile.length());
+				try {
+					while (ret.size() < limit && bytes < maxBytes && recordReader.next()) {
+						if (recordReader.seq <= afterSeq) continue;
+						final TextMessage message = recordReader.readMessage();
+						ret.add(message);
+						bytes += recordReader.bodyLength;
+					}
+				} finally {
+					recordReader.close();
+				}
+			} catch (IOException e) {
+				//Deleted by the time we got to it, the history goes on in the next segment
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * The sequence number after which the messages newer than timestamp start, so read(seqBefore(timestamp), ...)
+	 * gets the messages sent after that time.
+	 */
+	public long seqBefore(long timestamp) {
+		final Segment[] readSegments;
+		final long readActiveLength;
+		synchronized (this) {
+			if (ringSize > 0 && ring[ringStart].timestamp <= timestamp) {
+				long ret = ring[ringStart].seq;
+				for (int i = 0; i < ringSize; i++) {
+					final TextMessage message = ring[(ringStart + i) % ring.length];
+					if (message.timestamp > timestamp) break;
+					ret = message.seq;
+				}
+				return ret;
+			}
+			if (segments.isEmpty())
+				return (ringSize > 0) ? ring[ringStart].seq - 1 : lastSeq;
+			readSegments = segments.toArray(new Segment[segments.size()]);
+			readActiveLength = activeLength;
+		}
+
+		//The last index entry at or before timestamp, over all segments
+		Segment segment = null;
+		long offset = 0;
+		for (Segment candidate : readSegments) {
+			final ByteBuffer index;
+			try {
+				index = readIndex(candidate);
+			} catch (IOException e) {
+				continue;
+			}
+			final int entries = index.capacity() / INDEX_ENTRY_SIZE;
+			if (entries == 0 || index.getLong(8) > timestamp)
+				break;
+			segment = candidate;
+			for (int i = 0; i < entries && index.getLong(i * INDEX_ENTRY_SIZE + 8) <= timestamp; i++) {
+				offset = index.getLong(i * INDEX_ENTRY_SIZE + 16);
+			}
+		}
+		if (segment == null)
+			return readSegments[0].firstSeq - 1;
+
+		long ret = segment.firstSeq - 1;
+		try {
+			final boolean active = (segment == readSegments[readSegments.length - 1]);
+			final RecordReader recordReader = new RecordReader(segment.logFile, offset, active ? readActiveLength : segment.logFile.length());
+			try {
+				while (recordReader.next() && recordReader.timestamp <= timestamp) {
+					ret = recordReader.seq;
+				}
+			} finally {
+				recordReader.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return ret;
+	}
+
+	/**
+	 * Forces the records appended since the last call to disk, log before index.
+	 */
+	public synchronized void sync() {
+		if (!dirty || activeLogFile == null) return;
+		try {
+			activeLogFile.getChannel().force(false);
+			activeIndexFile.getChannel().force(false);
+			dirty = false;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public synchronized void close() {
+		sync();
+		try {
+			if (activeLogFile != null) activeLogFile.close();
+			if (activeIndexFile != null) activeIndexFile.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		activeLogFile = null;
+		activeIndexFile = null;
+		memoryOnly = true;
+	}
+
+	synchronized void setMemoryOnly() {
+		memoryOnly = true;
+		opened = true;
+	}
+
+	//Reads records from offset up to limit, stopping at the first incomplete or corrupt one
+	private static class RecordReader {
+		private final DataInputStream dataInputStream;
+		private final long limit;
+		private final CRC32 crc32 = new CRC32();
+		private byte[] body = new byte[256];
+
+		long offset;
+		long recordOffset;
+		int bodyLength;
+		long seq;
+		long timestamp;
+
+		RecordReader(File file, long offset, long limit) throws IOException {
+			final FileInputStream fileInputStream = new FileInputStream(file);
+			fileInputStream.getChannel().position(offset);
+			this.dataInputStream = new DataInputStream(new BufferedInputStream(fileInputStream));
+			this.offset = offset;
+			this.limit = limit;
+		}
+
+		boolean next() throws IOException {
+			if (offset + RECORD_HEADER_SIZE > limit)
+				return false;
+			final int length;
+			final int checksum;
+			try {
+				length = dataInputStream.readInt();
+				checksum = dataInputStream.readInt();
+				if (length < 16 || length > MAX_RECORD_LENGTH || offset + RECORD_HEADER_SIZE + length > limit)
+					return false;
+				if (body.length < length)
+					body = new byte[length];
+				dataInputStream.readFully(body, 0, length);
+			} catch (EOFException e) {
+				return false;
+			}
+			crc32.reset();
+			crc32.update(body, 0, length);
+			if ((int) crc32.getValue() != checksum)
+				return false;
+
+			final ByteBuffer header = ByteBuffer.wrap(body, 0, 16);
+			seq = header.getLong();
+			timestamp = header.getLong();
+			bodyLength = length;
+			recordOffset = offset;
+			offset += RECORD_HEADER_SIZE + length;
+			return true;
+		}
+
+		//The current record, without its context
+		TextMessage readMessage() throws IOException {
+			final DataInputStream record = new DataInputStream(new ByteArrayInputStream(body, 16, bodyLength - 16));
+			final TextMessage message = new TextMessage();
+			message.seq = seq;
+			message.timestamp = timestamp;
+			message.compressContents = (record.readByte() & FLAG_COMPRESS_CONTENTS) != 0;
+			message.type = record.readByte();
+			message.from = UserFactory.instance.getFromLogin(record.readUTF());
+			final byte[] content = new byte[record.readInt()];
+			record.readFully(content);
+			message.content = new String(content, Utf8Codec.UTF8);
+			return message;
+		}
+
+		void close() throws IOException {
+			dataInputStream.close();
+		}
+	}
+}
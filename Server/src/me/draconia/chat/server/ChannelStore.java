@@ -0,0 +1,106 @@
+package me.draconia.chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persists the metadata (password, persistent flag) of channels that have any. There are few of those and they
+ * rarely change, so the whole set is kept in memory and channels.dat is rewritten on every change: to a temp file
+ * that is fsynced and then renamed over the old one, so a crash leaves either the old or the new version.
+ * Format: [count:int] then per channel [name:UTF][persistent:boolean][hasPassword:boolean][password:UTF].
+ */
+public class ChannelStore {
+	public static class Entry {
+		public final String password;
+		public final boolean persistent;
+
+		Entry(String password, boolean persistent) {
+			this.password = password;
+			this.persistent = persistent;
+		}
+	}
+
+	public static ChannelStore instance;
+
+	private final File file;
+	private final File tempFile;
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+	public ChannelStore(String name) {
+		file = new File(name + ".dat");
+		tempFile = new File(name + ".dat.tmp");
+	}
+
+	public synchronized void load() throws IOException {
+		tempFile.delete();
+		if (!file.exists())
+			return;
+		final DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			final int count = dataInputStream.readInt();
+			for (int i = 0; i < count; i++) {
+				final String name = dataInputStream.readUTF();
+				final boolean persistent = dataInputStream.readBoolean();
+				final String password = dataInputStream.readBoolean() ? dataInputStream.readUTF() : null;
+				entries.put(name, new Entry(password, persistent));
+			}
+		} finally {
+			dataInputStream.close();
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized Entry get(String name) {
+		return entries.get(name);
+	}
+
+	public synchronized void channelChanged(ServerChannel serverChannel) {
+		final String password = serverChannel.getPassword();
+		final boolean persistent = serverChannel.isPersistent();
+		if (password == null && !persistent) {
+			if (entries.remove(serverChannel.name) == null)
+				return;
+		} else {
+			entries.put(serverChannel.name, new Entry(password, persistent));
+		}
+		try {
+			save();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void save() throws IOException {
+		final FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+		final DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+		try {
+			dataOutputStream.writeInt(entries.size());
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				dataOutputStream.writeUTF(entry.getKey());
+				dataOutputStream.writeBoolean(entry.getValue().persistent);
+				dataOutputStream.writeBoolean(entry.getValue().password != null);
+				if (entry.getValue().password != null) {
+					dataOutputStream.writeUTF(entry.getValue().password);
+				}
+			}
+			dataOutputStream.flush();
+			fileOutputStream.getFD().sync();
+		} finally {
+			dataOutputStream.close();
+		}
+		//Some platforms won't rename over an existing file
+		if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file)))
+			throw new IOException("Could not replace " + file);
+	}
+}
@@ -0,0 +1,164 @@
+package me.draconia.chat.server;
+
+import me.draconia.chat.ChatLib;
+import me.draconia.chat.types.BinaryMessage;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Credit based flow control for the file transfers relayed between users. Each transfer may have
+ * {@link ChatLib#FILE_WINDOW} TYPE_FILE_DATA messages relayed before its receiver grants more with TYPE_FILE_CREDIT,
+ * so a sender on a fast link can't pile up data in the server's queue for a receiver on a slow one.
+ * Start and end of a transfer are OTR encrypted, the server only sees the file ID at the start of data and credit
+ * messages: a transfer (sender, receiver and file ID) starts with its first data message and is forgotten when its
+ * receiver sends a TYPE_FILE_CREDIT for 0 more messages (which it does once it got TYPE_FILE_END), or once it has been
+ * quiet for {@link ServerConfig#FILE_TRANSFER_IDLE_TIMEOUT} seconds.
+ */
+public class FileRelay {
+	public static final FileRelay instance = new FileRelay();
+
+	private static class TransferKey {
+		final ServerUser sender;
+		final ServerUser receiver;
+		final int fileID;
+
+		TransferKey(ServerUser sender, ServerUser receiver, int fileID) {
+			this.sender = sender;
+			this.receiver = receiver;
+			this.fileID = fileID;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			TransferKey that = (TransferKey) o;
+			return fileID == that.fileID && sender.equals(that.sender) && receiver.equals(that.receiver);
+		}
+
+		@Override
+		public int hashCode() {
+			int result = sender.hashCode();
+			result = 31 * result + receiver.hashCode();
+			result = 31 * result + fileID;
+			return result;
+		}
+	}
+
+	//Guarded by itself
+	private static class Transfer {
+		int credits = ChatLib.FILE_WINDOW;
+		long lastActive = System.currentTimeMillis();
+	}
+
+	private final ConcurrentHashMap<TransferKey, Transfer> transfers = new ConcurrentHashMap<TransferKey, Transfer>();
+	//Transfers per sender, so new file IDs can't be used to get around the window
+	private final ConcurrentHashMap<ServerUser, AtomicInteger> senderTransfers = new ConcurrentHashMap<ServerUser, AtomicInteger>();
+
+	private FileRelay() {
+	}
+
+	public void start() {
+		final long sweepInterval = Math.max(1, ServerConfig.FILE_TRANSFER_IDLE_TIMEOUT / 4);
+		ServerTimer.instance.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) throws Exception {
+				removeIdle();
+				ServerTimer.instance.newTimeout(this, sweepInterval, TimeUnit.SECONDS);
+			}
+		}, sweepInterval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Takes one credit of the transfer the data message belongs to. Returns false if there is none left, or the sender
+	 * already has {@link ServerConfig#FILE_TRANSFERS_PER_USER} other transfers going, in which case it must not be relayed.
+	 */
+	public boolean takeCredit(ServerUser sender, ServerUser receiver, BinaryMessage data) {
+		if (data.content == null || data.content.length < 4)
+			return false;
+		final TransferKey transferKey = new TransferKey(sender, receiver, ByteBuffer.wrap(data.content).getInt(0));
+		Transfer transfer = transfers.get(transferKey);
+		if (transfer == null) {
+			AtomicInteger count = senderTransfers.get(sender);
+			if (count == null) {
+				final AtomicInteger newCount = new AtomicInteger(0);
+				count = senderTransfers.putIfAbsent(sender, newCount);
+				if (count == null) count = newCount;
+			}
+			if (count.incrementAndGet() > ServerConfig.FILE_TRANSFERS_PER_USER) {
+				count.decrementAndGet();
+				return false;
+			}
+			final Transfer newTransfer = new Transfer();
+			transfer = transfers.putIfAbsent(transferKey, newTransfer);
+			if (transfer == null) {
+				transfer = newTransfer;
+			} else {
+				count.decrementAndGet();
+			}
+		}
+		synchronized (transfer) {
+			if (transfer.credits <= 0)
+				return false;
+			transfer.credits--;
+			transfer.lastActive = System.currentTimeMillis();
+			return true;
+		}
+	}
+
+	/**
+	 * The receiver granted the sender more credits for a transfer. Never more than a full window, whatever it asks for.
+	 * 0 credits end the transfer, so it doesn't count towards the sender's {@link ServerConfig#FILE_TRANSFERS_PER_USER}
+	 * anymore.
+	 */
+	public void grantCredit(ServerUser receiver, ServerUser sender, BinaryMessage credit) {
+		if (credit.content == null || credit.content.length < 8)
+			return;
+		final ByteBuffer content = ByteBuffer.wrap(credit.content);
+		final TransferKey transferKey = new TransferKey(sender, receiver, content.getInt(0));
+		final Transfer transfer = transfers.get(transferKey);
+		if (transfer == null)
+			return;
+		final int count = content.getInt(4);
+		if (count == 0) {
+			remove(transferKey, transfer);
+			return;
+		}
+		if (count < 0)
+			return;
+		synchronized (transfer) {
+			transfer.credits = (int) Math.min((long) transfer.credits + count, ChatLib.FILE_WINDOW);
+			transfer.lastActive = System.currentTimeMillis();
+		}
+	}
+
+	private void removeIdle() {
+		final long idleSince = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(ServerConfig.FILE_TRANSFER_IDLE_TIMEOUT);
+		final Iterator<Map.Entry<TransferKey, Transfer>> iterator = transfers.entrySet().iterator();
+		while (iterator.hasNext()) {
+			final Map.Entry<TransferKey, Transfer> entry = iterator.next();
+			final Transfer transfer = entry.getValue();
+			synchronized (transfer) {
+				if (transfer.lastActive >= idleSince) continue;
+			}
+			remove(entry.getKey(), transfer);
+		}
+	}
+
+	private void remove(TransferKey transferKey, Transfer transfer) {
+		if (!transfers.remove(transferKey, transfer))
+			return;
+		final AtomicInteger count = senderTransfers.get(transferKey.sender);
+		if (count != null && count.decrementAndGet() <= 0) {
+			senderTransfers.remove(transferKey.sender, count);
+		}
+	}
+}
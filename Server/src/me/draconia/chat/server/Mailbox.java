@@ -0,0 +1,140 @@
+package me.draconia.chat.server;
+
+import me.draconia.chat.net.packets.PacketMailbox;
+import me.draconia.chat.types.Message;
+import me.draconia.chat.types.TextMessage;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps direct text messages sent to offline users, in {@link MailboxShard}s in mailbox/, and delivers them in pages
+ * when their recipient logs in. They stay stored until the recipient acknowledges them, so messages sent to a
+ * connection that drops before acknowledging are delivered again on the next login.
+ * Delivery, syncing and compaction happen on a thread of their own.
+ */
+public class Mailbox {
+	public static final Mailbox instance = new Mailbox(new File("mailbox"));
+
+	private final File directory;
+	private final MailboxShard[] shards;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("dracochat-mailbox", true));
+
+	private final Runnable maintenanceTask = new Runnable() {
+		@Override
+		public void run() {
+			for (MailboxShard shard : shards) {
+				shard.sync();
+				if (shard.needsCompaction()) {
+					try {
+						shard.compact();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	};
+
+	private Mailbox(File directory) {
+		this.directory = directory;
+		this.shards = new MailboxShard[Math.max(1, ServerConfig.MAILBOX_SHARDS)];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new MailboxShard(new File(directory, String.format("%03d.log", i)));
+		}
+	}
+
+	public void start() {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			System.out.println("[MAILBOX] Could not create " + directory + ", offline messages will not be kept");
+			return;
+		}
+		for (MailboxShard shard : shards) {
+			try {
+				shard.open();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		final long syncInterval = Math.max(10, ServerConfig.MAILBOX_SYNC_INTERVAL);
+		ServerTimer.instance.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) throws Exception {
+				executor.execute(maintenanceTask);
+				ServerTimer.instance.newTimeout(this, syncInterval, TimeUnit.MILLISECONDS);
+			}
+		}, syncInterval, TimeUnit.MILLISECONDS);
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				for (MailboxShard shard : shards) {
+					shard.close();
+				}
+			}
+		});
+	}
+
+	private MailboxShard getShard(ServerUser recipient) {
+		return shards[(recipient.login.hashCode() & Integer.MAX_VALUE) % shards.length];
+	}
+
+	/**
+	 * Stores a message for its offline recipient. Returns {@link MailboxShard#STORED}, or why it wasn't, see
+	 * {@link MailboxShard#store}.
+	 */
+	public int store(ServerUser recipient, TextMessage message) {
+		final int result = getShard(recipient).store(recipient, message);
+		if (result != MailboxShard.STORED)
+			return result;
+		//It may have logged in since the message couldn't be sent, after its mailbox was delivered
+		if (recipient.getChannel() != null) {
+			deliver(recipient, false);
+		}
+		return result;
+	}
+
+	public void ack(ServerUser recipient, long upToID) {
+		getShard(recipient).ack(recipient, upToID);
+	}
+
+	/**
+	 * Sends the recipient whatever is in its mailbox and hasn't been sent on its current connection yet; everything
+	 * if it just logged in.
+	 */
+	public void deliver(final ServerUser recipient, final boolean loggedIn) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final MailboxShard shard = getShard(recipient);
+				if (loggedIn) {
+					shard.resetSent(recipient);
+				}
+				final int pageSize = Math.max(1, ServerConfig.MAILBOX_PAGE_SIZE);
+				boolean more = true;
+				while (more) {
+					final ArrayList<TextMessage> page = shard.takeUnsent(recipient, pageSize);
+					if (page.isEmpty())
+						return;
+					more = shard.hasUnsent(recipient);
+
+					final PacketMailbox packetMailbox = new PacketMailbox();
+					packetMailbox.more = more;
+					packetMailbox.messages = page.toArray(new Message[page.size()]);
+					if (!recipient.sendPacket(packetMailbox)) {
+						//Gone again, it all gets sent on the next login
+						shard.resetSent(recipient);
+						return;
+					}
+				}
+			}
+		});
+	}
+}
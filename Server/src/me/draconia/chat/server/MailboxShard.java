@@ -0,0 +1,480 @@
+package me.draconia.chat.server;
+
+import me.draconia.chat.net.Utf8Codec;
+import me.draconia.chat.types.TextMessage;
+import me.draconia.chat.types.UserFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * The offline messages of the recipients whose logins hash to one shard, in an append-only log. Stored messages and
+ * acknowledgements (which drop every message of a recipient up to an ID) are both records; the index of what is still
+ * pending (ID and log offset of each message) is kept in memory and rebuilt by scanning the log on startup. Once most
+ * of the log is acknowledged messages it is compacted into a new one holding only the pending ones.
+ * Record format: [bodyLength:int][crc32 of body:int][type:byte][recipient:UTF][id:long], then for messages
+ * [timestamp:long][flags:byte][messageType:byte][from:UTF][contentLength:int][content:UTF-8].
+ */
+public class MailboxShard {
+	private static final byte RECORD_MESSAGE = 1;
+	private static final byte RECORD_ACK = 2;
+
+	private static final byte FLAG_COMPRESS_CONTENTS = 1;
+
+	//Results of store()
+	public static final int STORED = 0;
+	public static final int MAILBOX_FULL = 1;
+	public static final int TOO_LONG = 2;
+	public static final int STORE_FAILED = 3;
+
+	private static final int RECORD_HEADER_SIZE = 8;
+	public static final int MAX_RECORD_LENGTH = 256 * 1024;
+
+	//Pending messages of one recipient, oldest first
+	static class Pending {
+		long nextID = 1;
+		//IDs up to this have been sent on the recipient's current connection
+		long sentUpTo = 0;
+		long[] ids = new long[4];
+		long[] offsets = new long[4];
+		int count = 0;
+
+		void add(long id, long offset) {
+			if (count == ids.length) {
+				final long[] grownIDs = new long[count * 2];
+				System.arraycopy(ids, 0, grownIDs, 0, count);
+				ids = grownIDs;
+				final long[] grownOffsets = new long[count * 2];
+				System.arraycopy(offsets, 0, grownOffsets, 0, count);
+				offsets = grownOffsets;
+			}
+			ids[count] = id;
+			offsets[count] = offset;
+			count++;
+			nextID = Math.max(nextID, id + 1);
+		}
+
+		//Returns how many were dropped
+		int ack(long upToID) {
+			int dropped = 0;
+			while (dropped < count && ids[dropped] <= upToID) {
+				dropped++;
+			}
+			if (dropped > 0) {
+				System.arraycopy(ids, dropped, ids, 0, count - dropped);
+				System.arraycopy(offsets, dropped, offsets, 0, count - dropped);
+				count -= dropped;
+			}
+			return dropped;
+		}
+	}
+
+	private final File logFile;
+	private final File compactLogFile;
+
+	//All guarded by this
+	private final HashMap<String, Pending> pending = new HashMap<String, Pending>();
+	private RandomAccessFile logRandomAccessFile = null;
+	private FileChannel logChannel = null;
+	private long logLength = 0;
+	private long pendingCount = 0;
+	private long recordCount = 0;
+	private boolean dirty = false;
+
+	private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(256);
+	private final DataOutputStream recordStream = new DataOutputStream(recordBuffer);
+	private final CRC32 crc32 = new CRC32();
+
+	public MailboxShard(File logFile) {
+		this.logFile = logFile;
+		this.compactLogFile = new File(logFile.getPath() + ".compact");
+	}
+
+	public synchronized void open() throws IOException {
+		if (!logFile.exists() && compactLogFile.exists()) {
+			//Compaction got as far as removing the old log: the compacted one is complete, it was forced before
+			if (!compactLogFile.renameTo(logFile))
+				throw new IOException("Could not move " + compactLogFile.getName() + " into place");
+		} else {
+			//Left over by an interrupted compaction, the log it was made from is still complete
+			compactLogFile.delete();
+		}
+		logRandomAccessFile = new RandomAccessFile(logFile, "rw");
+		logChannel = logRandomAccessFile.getChannel();
+		logLength = logChannel.size();
+
+		final DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+		long offset = 0;
+		try {
+			byte[] body = new byte[256];
+			while (true) {
+				final int length;
+				final int checksum;
+				try {
+					length = dataInputStream.readInt();
+					checksum = dataInputStream.readInt();
+					if (length <= 0 || length > MAX_RECORD_LENGTH)
+						break;
+					if (body.length < length)
+						body = new byte[length];
+					dataInputStream.readFully(body, 0, length);
+				} catch (EOFException e) {
+					break;
+				}
+				crc32.reset();
+				crc32.update(body, 0, length);
+				if ((int) crc32.getValue() != checksum)
+					break;
+
+				final DataInputStream record = new DataInputStream(new ByteArrayInputStream(body, 0, length));
+				final byte type = record.readByte();
+				final String recipient = record.readUTF();
+				final long id = record.readLong();
+				indexRecord(type, recipient, id, offset);
+				offset += RECORD_HEADER_SIZE + length;
+			}
+		} finally {
+			dataInputStream.close();
+		}
+		if (offset < logLength) {
+			System.out.println("[MAILBOX] Dropping " + (logLength - offset) + " bytes of incomplete records at the end of " + logFile.getName());
+			logChannel.truncate(offset);
+			logLength = offset;
+		}
+	}
+
+	private void indexRecord(byte type, String recipient, long id, long offset) {
+		recordCount++;
+		if (type == RECORD_MESSAGE) {
+			getPending(recipient).add(id, offset);
+			pendingCount++;
+		} else if (type == RECORD_ACK) {
+			final Pending recipientPending = pending.get(recipient);
+			if (recipientPending != null) {
+				pendingCount -= recipientPending.ack(id);
+				recipientPending.nextID = Math.max(recipientPending.nextID, id + 1);
+			}
+		}
+	}
+
+	private Pending getPending(String recipient) {
+		Pending recipientPending = pending.get(recipient);
+		if (recipientPending == null) {
+			recipientPending = new Pending();
+			pending.put(recipient, recipientPending);
+		}
+		return recipientPending;
+	}
+
+	/**
+	 * Stores a message for its recipient. Returns {@link #STORED}, {@link #MAILBOX_FULL} if the recipient already has
+	 * {@link ServerConfig#MAILBOX_MAX_MESSAGES} messages waiting, {@link #TOO_LONG} if the message doesn't fit in a
+	 * record or {@link #STORE_FAILED} if it couldn't be written.
+	 */
+	public synchronized int store(ServerUser recipient, TextMessage message) {
+		final Pending recipientPending = getPending(recipient.login);
+		if (recipientPending.count >= ServerConfig.MAILBOX_MAX_MESSAGES)
+			return MAILBOX_FULL;
+		try {
+			final long id = recipientPending.nextID;
+			recordBuffer.reset();
+			recordStream.writeByte(RECORD_MESSAGE);
+			recordStream.writeUTF(recipient.login);
+			recordStream.writeLong(id);
+			recordStream.writeLong(message.timestamp);
+			recordStream.writeByte(message.compressContents ? FLAG_COMPRESS_CONTENTS : 0);
+			recordStream.writeByte(message.type);
+			recordStream.writeUTF(message.from.login);
+			final byte[] content = message.content.getBytes(Utf8Codec.UTF8);
+			recordStream.writeInt(content.length);
+			recordStream.write(content);
+			if (recordBuffer.size() > MAX_RECORD_LENGTH)
+				return TOO_LONG;
+			final long offset = appendRecord();
+			recipientPending.add(id, offset);
+			pendingCount++;
+			recordCount++;
+			return STORED;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return STORE_FAILED;
+		}
+	}
+
+	/**
+	 * Drops the recipient's messages up to upToID.
+	 */
+	public synchronized void ack(ServerUser recipient, long upToID) {
+		final Pending recipientPending = pending.get(recipient.login);
+		if (recipientPending == null)
+			return;
+		//Never past what was actually sent
+		upToID = Math.min(upToID, recipientPending.sentUpTo);
+		if (recipientPending.count == 0 || recipientPending.ids[0] > upToID)
+			return;
+		try {
+			recordBuffer.reset();
+			recordStream.writeByte(RECORD_ACK);
+			recordStream.writeUTF(recipient.login);
+			recordStream.writeLong(upToID);
+			appendRecord();
+			recordCount++;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		pendingCount -= recipientPending.ack(upToID);
+		if (recipientPending.count == 0) {
+			pending.remove(recipient.login);
+		}
+	}
+
+	//The recipient logged in, everything pending has to be sent again
+	public synchronized void resetSent(ServerUser recipient) {
+		final Pending recipientPending = pending.get(recipient.login);
+		if (recipientPending != null) {
+			recipientPending.sentUpTo = 0;
+		}
+	}
+
+	public synchronized boolean hasUnsent(ServerUser recipient) {
+		final Pending recipientPending = pending.get(recipient.login);
+		return recipientPending != null && recipientPending.count > 0 && recipientPending.ids[recipientPending.count - 1] > recipientPending.sentUpTo;
+	}
+
+	/**
+	 * Up to limit of the recipient's messages that haven't been sent on its current connection yet, marking them
+	 * as sent.
+	 */
+	public synchronized ArrayList<TextMessage> takeUnsent(ServerUser recipient, int limit) {
+		final ArrayList<TextMessage> ret = new ArrayList<TextMessage>();
+		final Pending recipientPending = pending.get(recipient.login);
+		if (recipientPending == null)
+			return ret;
+		for (int i = 0; i < recipientPending.count && ret.size() < limit; i++) {
+			if (recipientPending.ids[i] <= recipientPending.sentUpTo) continue;
+			try {
+				final TextMessage message = readMessage(recipientPending.offsets[i]);
+				message.context = recipient;
+				ret.add(message);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			recipientPending.sentUpTo = recipientPending.ids[i];
+		}
+		return ret;
+	}
+
+	private TextMessage readMessage(long offset) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		readFully(header, offset);
+		final int length = header.getInt(0);
+		if (length <= 0 || length > MAX_RECORD_LENGTH)
+			throw new IOException("Corrupt mailbox record at " + offset);
+		final ByteBuffer body = ByteBuffer.allocate(length);
+		readFully(body, offset + RECORD_HEADER_SIZE);
+		crc32.reset();
+		crc32.update(body.array(), 0, length);
+		if ((int) crc32.getValue() != header.getInt(4))
+			throw new IOException("Corrupt mailbox record at " + offset);
+
+		final DataInputStream record = new DataInputStream(new ByteArrayInputStream(body.array(), 0, length));
+		record.readByte();
+		record.readUTF();
+		final TextMessage message = new TextMessage();
+		message.seq = record.readLong();
+		message.timestamp = record.readLong();
+		message.compressContents = (record.readByte() & FLAG_COMPRESS_CONTENTS) != 0;
+		message.type = record.readByte();
+		message.from = UserFactory.instance.getFromLogin(record.readUTF());
+		final byte[] content = new byte[record.readInt()];
+		record.readFully(content);
+		message.content = new String(content, Utf8Codec.UTF8);
+		return message;
+	}
+
+	private void readFully(ByteBuffer byteBuffer, long offset) throws IOException {
+		if (offset < 0 || offset + byteBuffer.remaining() > logLength)
+			throw new IOException("Mailbox record at " + offset + " is past the end of " + logFile.getName());
+		readFully(logChannel, byteBuffer, offset);
+	}
+
+	private long appendRecord() throws IOException {
+		if (logChannel == null)
+			throw new IOException(logFile.getName() + " is not open");
+		final byte[] body = recordBuffer.toByteArray();
+		crc32.reset();
+		crc32.update(body, 0, body.length);
+		final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.length);
+		record.putInt(body.length);
+		record.putInt((int) crc32.getValue());
+		record.put(body);
+		record.flip();
+		final long offset = logLength;
+		while (record.hasRemaining()) {
+			logChannel.write(record, offset + record.position());
+		}
+		logLength += record.capacity();
+		dirty = true;
+		return offset;
+	}
+
+	public synchronized void sync() {
+		if (!dirty || logChannel == null) return;
+		try {
+			logChannel.force(false);
+			dirty = false;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public synchronized void close() {
+		if (logChannel == null) return;
+		sync();
+		try {
+			logRandomAccessFile.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		logChannel = null;
+		logRandomAccessFile = null;
+	}
+
+	public synchronized boolean needsCompaction() {
+		return recordCount >= Math.max(ServerConfig.MAILBOX_COMPACT_RECORDS, pendingCount * 4);
+	}
+
+	/**
+	 * Rewrites the log with only the pending messages, which keep their IDs. Like {@link UserStore#compact()} only
+	 * taking the snapshot of the pending offsets and copying the records appended during the copy hold the shard lock,
+	 * the bulk of the copy and its fsync don't.
+	 */
+	public void compact() throws IOException {
+		final FileChannel copiedChannel;
+		final long copiedLength;
+		final long copiedRecords;
+		final long[] offsets;
+		synchronized (this) {
+			if (logChannel == null) return;
+			copiedChannel = logChannel;
+			copiedLength = logLength;
+			copiedRecords = recordCount;
+			int count = 0;
+			for (Pending recipientPending : pending.values()) {
+				count += recipientPending.count;
+			}
+			offsets = new long[count];
+			int i = 0;
+			for (Pending recipientPending : pending.values()) {
+				System.arraycopy(recipientPending.offsets, 0, offsets, i, recipientPending.count);
+				i += recipientPending.count;
+			}
+		}
+
+		final HashMap<Long, Long> newOffsets = new HashMap<Long, Long>();
+		final FileOutputStream compactOutputStream = new FileOutputStream(compactLogFile);
+		final DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(compactOutputStream));
+		long compactLength = 0;
+		try {
+			for (long offset : offsets) {
+				final byte[] record = readRawRecord(copiedChannel, offset);
+				dataOutputStream.write(record);
+				newOffsets.put(offset, compactLength);
+				compactLength += record.length;
+			}
+			dataOutputStream.flush();
+			compactOutputStream.getFD().sync();
+		} finally {
+			dataOutputStream.close();
+		}
+
+		synchronized (this) {
+			//Closed, or compacted some other way, while copying
+			if (logChannel != copiedChannel || logLength < copiedLength) {
+				compactLogFile.delete();
+				return;
+			}
+			//Appended meanwhile, copied as they are, so their offsets only move by the same amount
+			final long oldLength = logLength;
+			final RandomAccessFile compactRandomAccessFile = new RandomAccessFile(compactLogFile, "rw");
+			try {
+				final FileChannel compactChannel = compactRandomAccessFile.getChannel();
+				final ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+				long offset = copiedLength;
+				while (offset < oldLength) {
+					chunk.clear();
+					chunk.limit((int) Math.min(chunk.capacity(), oldLength - offset));
+					readFully(copiedChannel, chunk, offset);
+					chunk.flip();
+					final long position = compactLength + offset - copiedLength;
+					while (chunk.hasRemaining()) {
+						compactChannel.write(chunk, position + chunk.position());
+					}
+					offset += chunk.limit();
+				}
+				compactChannel.force(false);
+			} catch (IOException e) {
+				compactRandomAccessFile.close();
+				compactLogFile.delete();
+				throw e;
+			}
+			compactRandomAccessFile.close();
+
+			//The old log stays open until the compacted one is in place, so a failed rename leaves the shard working
+			if (!compactLogFile.renameTo(logFile) && !(logFile.delete() && compactLogFile.renameTo(logFile))) {
+				//Unless the old log is already gone, then the compacted one is picked up by open()
+				if (logFile.exists()) {
+					compactLogFile.delete();
+				}
+				throw new IOException("Could not replace " + logFile.getName());
+			}
+			logRandomAccessFile.close();
+			logRandomAccessFile = new RandomAccessFile(logFile, "rw");
+			logChannel = logRandomAccessFile.getChannel();
+			for (Pending recipientPending : pending.values()) {
+				for (int i = 0; i < recipientPending.count; i++) {
+					final long offset = recipientPending.offsets[i];
+					recipientPending.offsets[i] = (offset >= copiedLength) ? compactLength + offset - copiedLength : newOffsets.get(offset);
+				}
+			}
+			logLength = compactLength + oldLength - copiedLength;
+			recordCount = offsets.length + recordCount - copiedRecords;
+			dirty = false;
+		}
+	}
+
+	//Header included
+	private static byte[] readRawRecord(FileChannel fileChannel, long offset) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		readFully(fileChannel, header, offset);
+		final int length = header.getInt(0);
+		if (length <= 0 || length > MAX_RECORD_LENGTH)
+			throw new IOException("Corrupt mailbox record at " + offset);
+		final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+		readFully(fileChannel, record, offset);
+		return record.array();
+	}
+
+	private static void readFully(FileChannel fileChannel, ByteBuffer byteBuffer, long offset) throws IOException {
+		while (byteBuffer.hasRemaining()) {
+			if (fileChannel.read(byteBuffer, offset + byteBuffer.position()) < 0)
+				throw new EOFException();
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package me.draconia.chat.server;
 
 import me.draconia.chat.ChatLib;
+import me.draconia.chat.net.PacketBufferAllocator;
+import me.draconia.chat.net.PooledPacketBufferAllocator;
 import me.draconia.chat.net.packets.Packet;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
@@ -9,8 +11,12 @@ import org.bouncycastle.openssl.PEMKeyPair;
 import org.bouncycastle.openssl.PEMParser;
 import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
 import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.DirectChannelBufferFactory;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.util.ThreadNameDeterminer;
+import org.jboss.netty.util.ThreadRenamingRunnable;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -69,17 +75,35 @@ public class Main {
 			throw new Error("Failed to initialize the server-side SSLContext", e);
 		}
 
+		if (ServerConfig.PACKET_BUFFER_POOL.equals("direct")) {
+			PacketBufferAllocator.instance = new PooledPacketBufferAllocator(DirectChannelBufferFactory.getInstance(), ServerConfig.PACKET_BUFFER_POOL_SIZE);
+		} else if (ServerConfig.PACKET_BUFFER_POOL.equals("heap")) {
+			PacketBufferAllocator.instance = new PooledPacketBufferAllocator(HeapChannelBufferFactory.getInstance(), ServerConfig.PACKET_BUFFER_POOL_SIZE);
+		}
+
 		ChannelPipelineFactory channelPipelineFactory = ChatLib.initialize(sslContext, false, new ServerPacketHandler(), Packet.Side.CLIENT_TO_SERVER, new ServerUserFactory(), new ServerChannelFactory());
 
-		ServerBootstrap serverBootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+		//Keep our thread names instead of Netty's "New I/O worker #n"
+		ThreadRenamingRunnable.setThreadNameDeterminer(ThreadNameDeterminer.CURRENT);
+		ServerBootstrap serverBootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
+				Executors.newCachedThreadPool(new NamedThreadFactory("dracochat-boss", false)), Math.max(1, ServerConfig.BOSS_THREADS),
+				Executors.newCachedThreadPool(new NamedThreadFactory("dracochat-io", false)), Math.max(1, ServerConfig.WORKER_THREADS)));
 		serverBootstrap.setPipelineFactory(channelPipelineFactory);
 		serverBootstrap.setOption("child.tcpNoDelay", true);
 		serverBootstrap.setOption("child.keepAlive", true);
+		//High first, the low watermark can't be set above it
+		serverBootstrap.setOption("child.writeBufferHighWaterMark", ServerConfig.WRITE_HIGH_WATERMARK);
+		serverBootstrap.setOption("child.writeBufferLowWaterMark", ServerConfig.WRITE_LOW_WATERMARK);
 
 		final int port = 13137;
 
+		Mailbox.instance.start();
 		serverBootstrap.bind(new InetSocketAddress(port));
 
-		System.out.println("[NET] Server listening on port " + port);
+		System.out.println("[NET] Server listening on port " + port + " (" + ServerConfig.WORKER_THREADS + " I/O threads, " + ServerConfig.LOGIN_THREADS + " login threads)");
+
+		ServerStats.start();
+		FileRelay.instance.start();
+		MessageHistory.instance.start();
 	}
 }
@@ -0,0 +1,188 @@
+package me.draconia.chat.server;
+
+import me.draconia.chat.net.Utf8Codec;
+import me.draconia.chat.net.packets.PacketHistoryResponse;
+import me.draconia.chat.types.Message;
+import me.draconia.chat.types.TextMessage;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link ChannelHistory} of every channel in use, in history/[hex of the UTF-8 channel name]/. Histories are
+ * opened, history requests are answered and the logs are synced to disk on a thread of their own, so none of it ever
+ * holds up an I/O thread.
+ */
+public class MessageHistory {
+	public static final MessageHistory instance = new MessageHistory(new File("history"));
+
+	private final File directory;
+	private final ConcurrentHashMap<String, ChannelHistory> histories = new ConcurrentHashMap<String, ChannelHistory>();
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("dracochat-history", true));
+
+	private final Runnable syncTask = new Runnable() {
+		@Override
+		public void run() {
+			for (ChannelHistory channelHistory : histories.values()) {
+				channelHistory.sync();
+			}
+		}
+	};
+
+	private MessageHistory(File directory) {
+		this.directory = directory;
+	}
+
+	public void start() {
+		final long syncInterval = Math.max(10, ServerConfig.HISTORY_SYNC_INTERVAL);
+		ServerTimer.instance.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) throws Exception {
+				executor.execute(syncTask);
+				ServerTimer.instance.newTimeout(this, syncInterval, TimeUnit.MILLISECONDS);
+			}
+		}, syncInterval, TimeUnit.MILLISECONDS);
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				for (ChannelHistory channelHistory : histories.values()) {
+					channelHistory.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the history of a channel. One that isn't loaded yet is returned right away and opened on the history
+	 * thread, see {@link #whenOpen}.
+	 */
+	public ChannelHistory get(final String channelName) {
+		final ChannelHistory channelHistory = histories.get(channelName);
+		if (channelHistory != null)
+			return channelHistory;
+		final ChannelHistory created = new ChannelHistory(new File(directory, toDirectoryName(channelName)));
+		final ChannelHistory existing = histories.putIfAbsent(channelName, created);
+		if (existing != null)
+			return existing;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					created.open();
+				} catch (IOException e) {
+					System.out.println("[HISTORY] Could not open the history of #" + channelName + ", keeping it in memory only: " + e.getMessage());
+					created.setMemoryOnly();
+				}
+			}
+		});
+		return created;
+	}
+
+	/**
+	 * Runs task holding the history's lock: right away if the history is open and no earlier task is still waiting,
+	 * otherwise on the history thread once it has been opened. Tasks keep their order either way.
+	 */
+	public void whenOpen(final ChannelHistory channelHistory, final Runnable task) {
+		if (channelHistory.isOpen() && channelHistory.waitingTasks.get() == 0) {
+			synchronized (channelHistory) {
+				task.run();
+			}
+			return;
+		}
+		channelHistory.waitingTasks.incrementAndGet();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					synchronized (channelHistory) {
+						task.run();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					channelHistory.waitingTasks.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Closes the history of a channel that is no longer in use. It is opened again the next time it is needed.
+	 */
+	public void unload(String channelName) {
+		final ChannelHistory channelHistory = histories.remove(channelName);
+		if (channelHistory == null)
+			return;
+		//Behind its open and anything still waiting for it
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				channelHistory.close();
+			}
+		});
+	}
+
+	private static String toDirectoryName(String channelName) {
+		final byte[] bytes = channelName.getBytes(Utf8Codec.UTF8);
+		final StringBuilder stringBuilder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			stringBuilder.append(Character.forDigit((b >> 4) & 0xF, 16));
+			stringBuilder.append(Character.forDigit(b & 0xF, 16));
+		}
+		return stringBuilder.toString();
+	}
+
+	/**
+	 * Sends the user up to limit (at most {@link ServerConfig#HISTORY_MAX_REQUEST}) messages of the channel's history
+	 * after sinceSeq, or after sinceTimestamp if sinceSeq is 0, in pages of {@link ServerConfig#HISTORY_PAGE_SIZE}.
+	 */
+	public void sendHistory(final ServerUser serverUser, final ServerChannel serverChannel, final long sinceSeq, final long sinceTimestamp, final int limit) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					streamHistory(serverUser, serverChannel, sinceSeq, sinceTimestamp, limit);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	private void streamHistory(ServerUser serverUser, ServerChannel serverChannel, long sinceSeq, long sinceTimestamp, int limit) {
+		final ChannelHistory channelHistory = get(serverChannel.name);
+		long afterSeq = (sinceSeq > 0) ? sinceSeq : channelHistory.seqBefore(sinceTimestamp);
+		int remaining = Math.min(limit, ServerConfig.HISTORY_MAX_REQUEST);
+		final int pageSize = Math.max(1, ServerConfig.HISTORY_PAGE_SIZE);
+		//Keeps pages well below the maximum frame length
+		final int maxPageBytes = ChannelHistory.MAX_RECORD_LENGTH;
+
+		boolean more = true;
+		while (more) {
+			final ArrayList<TextMessage> page = channelHistory.read(afterSeq, Math.min(pageSize, remaining), maxPageBytes);
+			for (TextMessage message : page) {
+				if (message.context == null) message.context = serverChannel;
+			}
+			remaining -= page.size();
+			if (!page.isEmpty()) {
+				afterSeq = page.get(page.size() - 1).seq;
+			}
+			more = !page.isEmpty() && remaining > 0 && afterSeq < channelHistory.getLastSeq();
+
+			final PacketHistoryResponse packetHistoryResponse = new PacketHistoryResponse();
+			packetHistoryResponse.channel = serverChannel;
+			packetHistoryResponse.more = more;
+			packetHistoryResponse.messages = page.toArray(new Message[page.size()]);
+			if (!serverUser.sendPacket(packetHistoryResponse))
+				return;
+		}
+	}
+}
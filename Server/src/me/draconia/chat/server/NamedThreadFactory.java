@@ -0,0 +1,25 @@
+package me.draconia.chat.server;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Names threads [prefix]-[n] so the boss, I/O worker and login threads can be told apart in thread dumps and profilers.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+	private final String prefix;
+	private final boolean daemon;
+	private final AtomicInteger count = new AtomicInteger(0);
+
+	public NamedThreadFactory(String prefix, boolean daemon) {
+		this.prefix = prefix;
+		this.daemon = daemon;
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable) {
+		final Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+		thread.setDaemon(daemon);
+		return thread;
+	}
+}
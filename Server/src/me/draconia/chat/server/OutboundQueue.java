@@ -0,0 +1,408 @@
+package me.draconia.chat.server;
+
+import me.draconia.chat.net.packets.Packet;
+import me.draconia.chat.net.packets.PacketMessageToClient;
+import me.draconia.chat.net.packets.PacketSymbolDefinition;
+import me.draconia.chat.net.packets.PacketUserinfoResponse;
+import me.draconia.chat.types.BinaryMessage;
+import me.draconia.chat.types.Message;
+import me.draconia.chat.types.User;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelLocal;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.jboss.netty.channel.socket.nio.NioSocketChannel;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the packets written to one connection (from the first one on, login replies and kicks included) and flushes
+ * them as a single composite buffer, so a burst of small packets becomes one TLS record and one syscall instead of one
+ * each. See {@link ServerConfig#WRITE_BATCH_LATENCY} for how long packets may wait. Nothing is handed to the channel
+ * while it is above its write buffer high watermark, so packets for a slow client wait here, where they are counted:
+ * presence updates are not queued while the connection is backlogged (the users they were about are sent once, with
+ * their state at that point, when it catches up), neither are typing states, and a connection with more than
+ * {@link ServerConfig#OUTBOUND_QUEUE_LIMIT} bytes waiting, or that stays backlogged for
+ * {@link ServerConfig#SLOW_CONSUMER_TIMEOUT} seconds, is closed.
+ */
+public class OutboundQueue {
+	//Queues of all open connections, for ServerStats
+	private static final Set<OutboundQueue> openQueues = Collections.newSetFromMap(new ConcurrentHashMap<OutboundQueue, Boolean>());
+	//The queue of each connection, created on its first write
+	private static final ChannelLocal<OutboundQueue> queues = new ChannelLocal<OutboundQueue>(true);
+
+	private static class PendingWrite {
+		final ChannelBuffer data;
+		final ChannelFuture future;
+
+		PendingWrite(ChannelBuffer data, ChannelFuture future) {
+			this.data = data;
+			this.future = future;
+		}
+	}
+
+	private final Channel channel;
+	//Null until the connection has logged in
+	private volatile ServerUser serverUser;
+	//Bytes waiting in pendingWrites, plus those handed to the channel that it hasn't sent yet
+	private final AtomicLong queuedBytes = new AtomicLong(0);
+	//When the channel went above its high watermark with packets still waiting here, 0 if it isn't
+	private volatile long backloggedSince = 0;
+	private final AtomicBoolean closing = new AtomicBoolean(false);
+	//Users whose presence updates were left out while backlogged. Guarded by itself
+	private final HashSet<ServerUser> stalePresence = new HashSet<ServerUser>();
+	private volatile boolean hasStalePresence = false;
+	//Generation of each symbol ID the peer has been sent a definition for on this connection, 0 if none. IDs of collected
+	//users and channels are handed out again, so a different generation means the peer knows the ID as someone else.
+	//Guarded by definitionLock
+	private final Object definitionLock = new Object();
+	private int[] definedUsers = new int[0];
+	private int[] definedChannels = new int[0];
+	private final ConcurrentLinkedQueue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<PendingWrite>();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	private final TimerTask flushTimerTask = new TimerTask() {
+		@Override
+		public void run(Timeout timeout) throws Exception {
+			scheduleFlushInIoThread();
+		}
+	};
+
+	private OutboundQueue(Channel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * The queue of a connection, the same one before and after it logs in.
+	 */
+	public static OutboundQueue get(Channel channel) {
+		final OutboundQueue existing = queues.get(channel);
+		if (existing != null)
+			return existing;
+		final OutboundQueue created = new OutboundQueue(channel);
+		final OutboundQueue raced = queues.setIfAbsent(channel, created);
+		if (raced != null)
+			return raced;
+		openQueues.add(created);
+		channel.getCloseFuture().addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture channelFuture) throws Exception {
+				created.closed();
+			}
+		});
+		return created;
+	}
+
+	/**
+	 * The queue of a connection if anything has been written to it yet, null otherwise.
+	 */
+	public static OutboundQueue find(Channel channel) {
+		return queues.get(channel);
+	}
+
+	public static Set<OutboundQueue> getOpenQueues() {
+		return openQueues;
+	}
+
+	//Null if the connection hasn't logged in
+	public ServerUser getServerUser() {
+		return serverUser;
+	}
+
+	void setServerUser(ServerUser serverUser) {
+		this.serverUser = serverUser;
+	}
+
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	private boolean isBacklogged() {
+		return !channel.isWritable() || queuedBytes.get() >= ServerConfig.WRITE_HIGH_WATERMARK;
+	}
+
+	public Channel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Queues an encoded packet (data must be a duplicate of packet.getData()), preceded by a
+	 * PacketSymbolDefinition for any user or channel it references that this connection doesn't know yet.
+	 */
+	public ChannelFuture writePacket(Packet packet, ChannelBuffer data) {
+		//Only the latest nickname and state of a user matter, so these can be collapsed into one update for later
+		if (packet instanceof PacketUserinfoResponse && isBacklogged()) {
+			synchronized (stalePresence) {
+				for (User user : ((PacketUserinfoResponse) packet).users) {
+					stalePresence.add((ServerUser) user);
+				}
+				hasStalePresence = true;
+			}
+			ServerStats.recordPresenceDropped();
+			return Channels.succeededFuture(channel);
+		}
+		//Typing states (only readable here when sent to a channel, OTR hides them otherwise) are worthless once late
+		if (packet instanceof PacketMessageToClient && isBacklogged()) {
+			final Message message = ((PacketMessageToClient) packet).message;
+			if (message instanceof BinaryMessage && message.type == BinaryMessage.TYPE_TYPING_STATE) {
+				ServerStats.recordTypingDropped();
+				return Channels.succeededFuture(channel);
+			}
+		}
+
+		final List<User> symbolUsers = packet.getSymbolUsers();
+		final List<me.draconia.chat.types.Channel> symbolChannels = packet.getSymbolChannels();
+		if (symbolUsers.isEmpty() && symbolChannels.isEmpty())
+			return write(data);
+
+		//Definitions and the packet using them have to be queued in this order, without another packet claiming the definitions in between
+		synchronized (definitionLock) {
+			ArrayList<User> newUsers = null;
+			for (User user : symbolUsers) {
+				final int symbolID = user.getSymbolID();
+				final int generation = user.getSymbolGeneration();
+				if (symbolID >= definedUsers.length) {
+					definedUsers = Arrays.copyOf(definedUsers, Math.max(symbolID + 1, definedUsers.length * 2));
+				} else if (definedUsers[symbolID] == generation) {
+					continue;
+				}
+				definedUsers[symbolID] = generation;
+				if (newUsers == null) newUsers = new ArrayList<User>();
+				newUsers.add(user);
+			}
+			ArrayList<me.draconia.chat.types.Channel> newChannels = null;
+			for (me.draconia.chat.types.Channel channel : symbolChannels) {
+				final int symbolID = channel.getSymbolID();
+				final int generation = channel.getSymbolGeneration();
+				if (symbolID >= definedChannels.length) {
+					definedChannels = Arrays.copyOf(definedChannels, Math.max(symbolID + 1, definedChannels.length * 2));
+				} else if (definedChannels[symbolID] == generation) {
+					continue;
+				}
+				definedChannels[symbolID] = generation;
+				if (newChannels == null) newChannels = new ArrayList<me.draconia.chat.types.Channel>();
+				newChannels.add(channel);
+			}
+
+			if (newUsers != null || newChannels != null) {
+				final PacketSymbolDefinition packetSymbolDefinition = new PacketSymbolDefinition();
+				packetSymbolDefinition.users = (newUsers == null) ? new User[0] : newUsers.toArray(new User[newUsers.size()]);
+				packetSymbolDefinition.channels = (newChannels == null) ? new me.draconia.chat.types.Channel[0] : newChannels.toArray(new me.draconia.chat.types.Channel[newChannels.size()]);
+				releaseWhenWritten(write(packetSymbolDefinition.getData()), packetSymbolDefinition);
+			}
+			return write(data);
+		}
+	}
+
+	/**
+	 * Returns the packet's buffer to the allocator once future completes.
+	 */
+	public static void releaseWhenWritten(ChannelFuture future, final Packet packet) {
+		future.addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture channelFuture) throws Exception {
+				packet.release();
+			}
+		});
+	}
+
+	public ChannelFuture write(ChannelBuffer data) {
+		if (closing.get())
+			return Channels.failedFuture(channel, new ClosedChannelException());
+		final long queued = queuedBytes.addAndGet(data.readableBytes());
+		if (queued > ServerConfig.OUTBOUND_QUEUE_LIMIT) {
+			queuedBytes.addAndGet(-data.readableBytes());
+			disconnectSlowConsumer(queued + " bytes waiting");
+			return Channels.failedFuture(channel, new ClosedChannelException());
+		}
+
+		final ChannelFuture future = new DefaultChannelFuture(channel, false);
+		pendingWrites.add(new PendingWrite(data, future));
+		//Closed while this was being queued, nothing is going to flush it
+		if (closing.get() && !channel.isOpen()) {
+			failPendingWrites();
+			return future;
+		}
+		if (flushScheduled.compareAndSet(false, true)) {
+			final int latency = ServerConfig.WRITE_BATCH_LATENCY;
+			if (latency > 0) {
+				ServerTimer.instance.newTimeout(flushTimerTask, latency, TimeUnit.MILLISECONDS);
+			} else {
+				scheduleFlushInIoThread();
+			}
+		}
+		return future;
+	}
+
+	private void scheduleFlushInIoThread() {
+		if (channel instanceof NioSocketChannel) {
+			//Always queue, even from the I/O thread itself, so everything written in this loop turn is batched
+			((NioSocketChannel) channel).getWorker().executeInIoThread(flushTask, true);
+		} else {
+			channel.getPipeline().execute(flushTask);
+		}
+	}
+
+	/**
+	 * Called on the I/O thread when the channel crosses its high or low watermark.
+	 */
+	public void writabilityChanged() {
+		if (channel.isWritable()) {
+			flush();
+		} else {
+			backlogged();
+		}
+	}
+
+	/**
+	 * Hands everything queued so far to the channel right away, even above its high watermark, so a handler added
+	 * to the pipeline afterwards (like stream compression) only sees what is queued after this.
+	 * Must be called on the I/O thread.
+	 */
+	public void flushNow() {
+		flush(true);
+	}
+
+	private void flush() {
+		flush(false);
+	}
+
+	private void flush(boolean force) {
+		//Clear the flag first: anything queued after this point either makes it into this batch or schedules a new one
+		flushScheduled.set(false);
+
+		final int maxPackets = Math.max(1, ServerConfig.WRITE_BATCH_MAX_PACKETS);
+		while (true) {
+			//The rest waits until writabilityChanged()
+			if (!force && !channel.isWritable()) {
+				backlogged();
+				return;
+			}
+
+			final ChannelBuffer[] batch = new ChannelBuffer[maxPackets];
+			final ChannelFuture[] futures = new ChannelFuture[maxPackets];
+			int count = 0;
+			long bytes = 0;
+			PendingWrite pendingWrite;
+			while (count < maxPackets && (pendingWrite = pendingWrites.poll()) != null) {
+				batch[count] = pendingWrite.data;
+				futures[count] = pendingWrite.future;
+				bytes += pendingWrite.data.readableBytes();
+				count++;
+			}
+			if (count == 0) {
+				if (force) return;
+				backloggedSince = 0;
+				if (hasStalePresence && !isBacklogged()) {
+					sendStalePresence();
+				}
+				return;
+			}
+
+			final ChannelBuffer data;
+			if (count == 1) {
+				data = batch[0];
+			} else if (count == maxPackets) {
+				data = ChannelBuffers.wrappedBuffer(batch);
+			} else {
+				final ChannelBuffer[] components = new ChannelBuffer[count];
+				System.arraycopy(batch, 0, components, 0, count);
+				data = ChannelBuffers.wrappedBuffer(components);
+			}
+
+			final int futureCount = count;
+			final long batchBytes = bytes;
+			channel.write(data).addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(ChannelFuture channelFuture) throws Exception {
+					queuedBytes.addAndGet(-batchBytes);
+					for (int i = 0; i < futureCount; i++) {
+						if (channelFuture.isSuccess()) {
+							futures[i].setSuccess();
+						} else {
+							futures[i].setFailure(channelFuture.getCause());
+						}
+					}
+				}
+			});
+		}
+	}
+
+	//On the I/O thread, when packets have to wait for the channel. Closes the connection unless it catches up in time
+	private void backlogged() {
+		if (backloggedSince != 0 || pendingWrites.isEmpty())
+			return;
+		final long since = System.currentTimeMillis();
+		backloggedSince = since;
+		ServerTimer.instance.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) throws Exception {
+				//Otherwise it has caught up since, even if it is backlogged again
+				if (backloggedSince == since) {
+					disconnectSlowConsumer("backlogged for " + ServerConfig.SLOW_CONSUMER_TIMEOUT + "s");
+				}
+			}
+		}, ServerConfig.SLOW_CONSUMER_TIMEOUT, TimeUnit.SECONDS);
+	}
+
+	private void sendStalePresence() {
+		final ServerUser[] users;
+		synchronized (stalePresence) {
+			users = stalePresence.toArray(new ServerUser[stalePresence.size()]);
+			stalePresence.clear();
+			hasStalePresence = false;
+		}
+		if (users.length == 0)
+			return;
+		final PacketUserinfoResponse packetUserinfoResponse = PresenceDispatcher.buildUpdate(users);
+		releaseWhenWritten(writePacket(packetUserinfoResponse, packetUserinfoResponse.getData().duplicate()), packetUserinfoResponse);
+	}
+
+	private void disconnectSlowConsumer(String reason) {
+		if (!closing.compareAndSet(false, true))
+			return;
+		final ServerUser serverUser = this.serverUser;
+		System.out.println("[NET] Disconnecting " + (serverUser == null ? channel.getRemoteAddress() : serverUser.login) + ", too slow to keep up: " + reason);
+		ServerStats.recordSlowConsumer();
+		channel.close();
+	}
+
+	//Fails whatever didn't get written, so listeners waiting for it (like ServerChannel's buffer release) still run
+	private void closed() {
+		closing.set(true);
+		openQueues.remove(this);
+		failPendingWrites();
+	}
+
+	private void failPendingWrites() {
+		PendingWrite pendingWrite;
+		while ((pendingWrite = pendingWrites.poll()) != null) {
+			queuedBytes.addAndGet(-pendingWrite.data.readableBytes());
+			pendingWrite.future.setFailure(new ClosedChannelException());
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package me.draconia.chat.server;
+
+import me.draconia.chat.net.packets.PacketUserinfoResponse;
+import me.draconia.chat.types.User;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends nickname and state changes to whoever can see them (the user's {@link ServerUser#presenceWatchers} and the
+ * members of its channels too big to be indexed there), at most once
+ * every {@link ServerConfig#PRESENCE_BATCH_INTERVAL} ms. Changes only mark the user; when the batch goes out each
+ * recipient gets a single PacketUserinfoResponse with the current nickname and state of every changed user it
+ * can see, so a user flipping states several times in one batch is only reported once.
+ */
+public class PresenceDispatcher {
+	public static final PresenceDispatcher instance = new PresenceDispatcher();
+
+	private final ConcurrentHashMap<ServerUser, Boolean> changedUsers = new ConcurrentHashMap<ServerUser, Boolean>();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+	private final TimerTask flushTimerTask = new TimerTask() {
+		@Override
+		public void run(Timeout timeout) throws Exception {
+			try {
+				flush();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	};
+
+	private PresenceDispatcher() {
+	}
+
+	public void changed(ServerUser serverUser) {
+		changedUsers.put(serverUser, Boolean.TRUE);
+		if (flushScheduled.compareAndSet(false, true)) {
+			ServerTimer.instance.newTimeout(flushTimerTask, Math.max(1, ServerConfig.PRESENCE_BATCH_INTERVAL), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void flush() {
+		//Clear the flag first: anything changed after this point either makes it into this batch or schedules a new one
+		flushScheduled.set(false);
+
+		final HashMap<ServerUser, ArrayList<ServerUser>> updates = new HashMap<ServerUser, ArrayList<ServerUser>>();
+		final Iterator<ServerUser> changedIterator = changedUsers.keySet().iterator();
+		while (changedIterator.hasNext()) {
+			final ServerUser changedUser = changedIterator.next();
+			changedIterator.remove();
+
+			for (ServerUser recipient : changedUser.presenceWatchers.snapshot()) {
+				addUpdate(updates, recipient, changedUser);
+			}
+			//Members of big channels aren't in the index
+			final ServerChannel[] channels;
+			synchronized (changedUser.channels) {
+				channels = changedUser.channels.toArray(new ServerChannel[changedUser.channels.size()]);
+			}
+			for (ServerChannel serverChannel : channels) {
+				if (serverChannel.isPresenceIndexed()) continue;
+				for (ServerUser recipient : serverChannel.getMembers()) {
+					addUpdate(updates, recipient, changedUser);
+				}
+			}
+		}
+
+		for (Map.Entry<ServerUser, ArrayList<ServerUser>> update : updates.entrySet()) {
+			final ArrayList<ServerUser> users = update.getValue();
+			update.getKey().sendPacket(buildUpdate(users.toArray(new ServerUser[users.size()])));
+		}
+	}
+
+	/**
+	 * A PacketUserinfoResponse with the current nickname and state of the users.
+	 */
+	public static PacketUserinfoResponse buildUpdate(ServerUser[] users) {
+		final int count = users.length;
+		PacketUserinfoResponse packetUserinfoResponse = new PacketUserinfoResponse();
+		packetUserinfoResponse.users = new User[count];
+		packetUserinfoResponse.nicknames = new String[count];
+		packetUserinfoResponse.states = new byte[count];
+		for (int i = 0; i < count; i++) {
+			packetUserinfoResponse.users[i] = users[i];
+			packetUserinfoResponse.nicknames[i] = users[i].getNickname();
+			packetUserinfoResponse.states[i] = users[i].getState();
+		}
+		return packetUserinfoResponse;
+	}
+
+	private static void addUpdate(HashMap<ServerUser, ArrayList<ServerUser>> updates, ServerUser recipient, ServerUser changedUser) {
+		ArrayList<ServerUser> users = updates.get(recipient);
+		if (users == null) {
+			users = new ArrayList<ServerUser>(4);
+			updates.put(recipient, users);
+		} else if (users.get(users.size() - 1) == changedUser) {
+			//Changed users are added one at a time, so a recipient seeing this one through several channels already has it last
+			return;
+		}
+		users.add(changedUser);
+	}
+}
@@ -1,71 +1,379 @@
 package me.draconia.chat.server;
 
+import me.draconia.chat.net.packets.Packet;
 import me.draconia.chat.net.packets.PacketChannelAction;
 import me.draconia.chat.net.packets.PacketChannelUserSnapshotResponse;
+import me.draconia.chat.net.packets.PacketMessageToClient;
 import me.draconia.chat.types.Channel;
+import me.draconia.chat.types.TextMessage;
 import me.draconia.chat.types.User;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Membership is versioned: every join and leave increments the channel's sequence number and is broadcast with it,
+ * and the last {@link ServerConfig#CHANNEL_MEMBERSHIP_HISTORY} changes are remembered, so a client rejoining with
+ * the sequence number it last saw only gets what changed since then instead of the whole member list.
+ */
 public class ServerChannel extends Channel implements Serializable {
 	public static final long serialVersionUID = -1L;
 
-	protected String password;
+	//Random start so epochs from before a restart aren't reused
+	private static final AtomicInteger nextEpoch = new AtomicInteger(new Random().nextInt());
 
-	private transient HashSet<ServerUser> users = new HashSet<ServerUser>();
-	private transient HashSet<ServerUser> usersView = new HashSet<ServerUser>();
+	protected volatile String password;
+	//Persistent channels stay registered while empty
+	protected volatile boolean persistent;
+
+	private transient UserSet members = new UserSet();
+	//Both guarded by members
+	private transient long emptySince = System.currentTimeMillis();
+	private transient boolean evicted = false;
+	//Whether all members are in presenceIndex. Only changed while holding members
+	private transient volatile boolean presenceIndexed = true;
+	//Members who are in each other's (and their own) presenceWatchers, also guarded by members
+	private transient UserSet presenceIndex = new UserSet();
+	//Whether presenceIndex is being filled up to all members, or emptied because the channel is too big
+	private transient boolean presenceIndexing = true;
+	//Membership version, also guarded by members
+	private transient int epoch = newEpoch();
+	private transient int seq = 0;
+	//The users whose membership changed, the one of change n at n % length. Created on the first change
+	private transient ServerUser[] changedUsers = null;
 
 	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
 		in.defaultReadObject();
-		users = new HashSet<ServerUser>();
-		usersView = new HashSet<ServerUser>();
+		members = new UserSet();
+		emptySince = System.currentTimeMillis();
+		epoch = newEpoch();
+		presenceIndexed = true;
+		presenceIndex = new UserSet();
+		presenceIndexing = true;
+	}
+
+	private static int newEpoch() {
+		int ret;
+		do {
+			ret = nextEpoch.incrementAndGet() & Integer.MAX_VALUE;
+		} while (ret == 0);
+		return ret;
 	}
 
 	protected ServerChannel(String name) {
 		super(name);
 	}
 
+	//Only for ServerChannelFactory, while loading
+	void restore(String password, boolean persistent) {
+		this.password = password;
+		this.persistent = persistent;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
 	public void setPassword(String password) {
 		this.password = password;
+		ChannelStore.instance.channelChanged(this);
+	}
+
+	public boolean isPersistent() {
+		return persistent;
+	}
+
+	public void setPersistent(boolean persistent) {
+		this.persistent = persistent;
+		ChannelStore.instance.channelChanged(this);
 	}
 
 	public boolean checkPassword(String password) {
-		return (this.password == null && (password == null || password.isEmpty())) || this.password.equals(password);
+		final String channelPassword = this.password;
+		if (channelPassword == null)
+			return (password == null || password.isEmpty());
+		return channelPassword.equals(password);
 	}
 
-	public Set<ServerUser> getUsers() {
-		return usersView;
+	public boolean isEvicted() {
+		synchronized (members) {
+			return evicted;
+		}
 	}
 
-	public void joinUser(ServerUser serverUser) {
-		synchronized (users) {
-			synchronized (serverUser.channels) {
-				users.add(serverUser);
-				serverUser.channels.add(this);
-			}
-			informChannelAction(serverUser, PacketChannelAction.ACTION_JOIN);
-			usersView = (HashSet<ServerUser>) users.clone();
+	/**
+	 * Marks the channel as evicted if it has been empty for idleTimeout ms and isn't persistent.
+	 * Once evicted nobody can join it anymore.
+	 */
+	boolean evictIfIdle(long now, long idleTimeout) {
+		synchronized (members) {
+			if (evicted || persistent || !members.isEmpty() || now - emptySince < idleTimeout)
+				return false;
+			evicted = true;
+			return true;
 		}
+	}
 
-		PacketChannelUserSnapshotResponse packetChannelUserSnapshotResponse = new PacketChannelUserSnapshotResponse();
-		packetChannelUserSnapshotResponse.channel = this;
-		packetChannelUserSnapshotResponse.users = usersView.toArray(new User[usersView.size()]);
-		serverUser.sendPacket(packetChannelUserSnapshotResponse);
+	/**
+	 * The current members, see {@link UserSet#snapshot()}. Must not be modified.
+	 */
+	public ServerUser[] getMembers() {
+		return members.snapshot();
+	}
+
+	public boolean isMember(ServerUser serverUser) {
+		return members.contains(serverUser);
+	}
+
+	/**
+	 * Returns false without joining if the channel has been evicted, in which case the caller has to register
+	 * the channel again and join the result.
+	 * knownEpoch and knownSeq are the membership the user's client already has (0 if none), see {@link #sendMembership}.
+	 * Joining a channel the user is already in only resyncs its client.
+	 */
+	public boolean joinUser(ServerUser serverUser, int knownEpoch, int knownSeq) {
+		synchronized (members) {
+			if (evicted)
+				return false;
+			if (!members.contains(serverUser)) {
+				presenceJoined(serverUser);
+				synchronized (serverUser.channels) {
+					members.add(serverUser);
+					serverUser.channels.add(this);
+				}
+				stepPresenceIndex();
+				membershipChanged(serverUser);
+				informChannelAction(serverUser, PacketChannelAction.ACTION_JOIN);
+			}
+			//Still holding the lock, so no change can be broadcast between the membership and the deltas following it
+			sendMembership(serverUser, knownEpoch, knownSeq);
+		}
+		return true;
 	}
 
 	public void leaveUser(ServerUser serverUser) {
-		synchronized (users) {
+		synchronized (members) {
+			if (!members.contains(serverUser)) {
+				//Nothing changes, but the client still expects its leave to be confirmed
+				PacketChannelAction packetChannelAction = new PacketChannelAction();
+				packetChannelAction.user = serverUser;
+				packetChannelAction.channel = this;
+				packetChannelAction.action = PacketChannelAction.ACTION_LEAVE;
+				serverUser.sendPacket(packetChannelAction);
+				return;
+			}
+			membershipChanged(serverUser);
 			informChannelAction(serverUser, PacketChannelAction.ACTION_LEAVE);
+			presenceLeft(serverUser);
 			synchronized (serverUser.channels) {
-				users.remove(serverUser);
+				members.remove(serverUser);
 				serverUser.channels.remove(this);
 			}
-			usersView = (HashSet<ServerUser>) users.clone();
+			stepPresenceIndex();
+			if (members.isEmpty()) {
+				emptySince = System.currentTimeMillis();
+			}
+		}
+	}
+
+	/**
+	 * Whether the members see each other's presence changes through their {@link ServerUser#presenceWatchers}.
+	 * If not (the channel has too many members, or not all of them are indexed yet) they have to be sent to every member.
+	 */
+	public boolean isPresenceIndexed() {
+		return presenceIndexed;
+	}
+
+	//Must hold members, and the user must not be a member yet
+	private void presenceJoined(ServerUser serverUser) {
+		if (members.size() + 1 > ServerConfig.PRESENCE_INDEX_CHANNEL_LIMIT) {
+			//Indexing every pair of members costs quadratic memory, from here on the members are notified directly
+			presenceIndexing = false;
+		}
+		if (presenceIndexing) {
+			linkPresence(serverUser);
+		} else {
+			presenceIndexed = false;
+		}
+	}
+
+	//Must hold members, and the user must still be a member
+	private void presenceLeft(ServerUser serverUser) {
+		if (presenceIndex.contains(serverUser)) {
+			unlinkPresence(serverUser);
+		}
+		if (!presenceIndexing && members.size() - 1 <= ServerConfig.PRESENCE_INDEX_CHANNEL_LIMIT / 2) {
+			//Well below the limit again, so joins and leaves around it don't keep rebuilding the index
+			presenceIndexing = true;
+		}
+	}
+
+	//Must hold members. After each join or leave one more member is linked into or unlinked from presenceIndex, so
+	//crossing the limit costs O(members) per change rather than linking or unlinking every pair at once. Until all
+	//members are linked they are notified directly, and leftover pairs only make PresenceDispatcher find them twice
+	private void stepPresenceIndex() {
+		if (presenceIndexing) {
+			if (presenceIndex.size() < members.size()) {
+				for (ServerUser member : members.snapshot()) {
+					if (!presenceIndex.contains(member)) {
+						linkPresence(member);
+						break;
+					}
+				}
+			}
+			presenceIndexed = (presenceIndex.size() == members.size());
+		} else {
+			final ServerUser[] indexed = presenceIndex.snapshot();
+			if (indexed.length > 0) {
+				unlinkPresence(indexed[indexed.length - 1]);
+			}
+		}
+	}
+
+	//Must hold members
+	private void linkPresence(ServerUser serverUser) {
+		serverUser.presenceWatchers.add(serverUser);
+		for (ServerUser member : presenceIndex.snapshot()) {
+			member.presenceWatchers.add(serverUser);
+			serverUser.presenceWatchers.add(member);
+		}
+		presenceIndex.add(serverUser);
+	}
+
+	//Must hold members
+	private void unlinkPresence(ServerUser serverUser) {
+		presenceIndex.remove(serverUser);
+		serverUser.presenceWatchers.remove(serverUser);
+		for (ServerUser member : presenceIndex.snapshot()) {
+			member.presenceWatchers.remove(serverUser);
+			serverUser.presenceWatchers.remove(member);
+		}
+	}
+
+	//Must hold members
+	private void membershipChanged(ServerUser serverUser) {
+		if (seq == Integer.MAX_VALUE) {
+			//Start over rather than wrap, clients seeing the new epoch resync
+			epoch = newEpoch();
+			seq = 0;
+			changedUsers = null;
+		}
+		if (changedUsers == null) {
+			changedUsers = new ServerUser[Math.max(1, ServerConfig.CHANNEL_MEMBERSHIP_HISTORY)];
+		}
+		seq++;
+		changedUsers[seq % changedUsers.length] = serverUser;
+	}
+
+	/**
+	 * Sends the user the channel's membership. If its client has the membership of a recent enough sequence number
+	 * of this epoch it only gets the users who joined or left since, otherwise the full member list in pages of
+	 * {@link ServerConfig#CHANNEL_SNAPSHOT_PAGE_SIZE}. Must hold members.
+	 */
+	private void sendMembership(ServerUser serverUser, int knownEpoch, int knownSeq) {
+		final int pageSize = Math.max(1, ServerConfig.CHANNEL_SNAPSHOT_PAGE_SIZE);
+
+		if (knownEpoch == epoch && knownSeq <= seq && (seq - knownSeq) <= (changedUsers == null ? 0 : changedUsers.length)) {
+			final HashSet<ServerUser> changed = new HashSet<ServerUser>();
+			for (int i = knownSeq + 1; i <= seq; i++) {
+				changed.add(changedUsers[i % changedUsers.length]);
+			}
+			if (changed.size() <= pageSize) {
+				//Only where each user ended up matters
+				final ArrayList<User> joined = new ArrayList<User>();
+				final ArrayList<User> left = new ArrayList<User>();
+				for (ServerUser changedUser : changed) {
+					if (members.contains(changedUser)) {
+						joined.add(changedUser);
+					} else {
+						left.add(changedUser);
+					}
+				}
+				final PacketChannelUserSnapshotResponse packetChannelUserSnapshotResponse = newMembershipPacket();
+				packetChannelUserSnapshotResponse.incremental = true;
+				packetChannelUserSnapshotResponse.users = joined.toArray(new User[joined.size()]);
+				packetChannelUserSnapshotResponse.leftUsers = left.toArray(new User[left.size()]);
+				serverUser.sendPacket(packetChannelUserSnapshotResponse);
+				return;
+			}
+		}
+
+		final ServerUser[] snapshot = members.snapshot();
+		int offset = 0;
+		do {
+			final int count = Math.min(pageSize, snapshot.length - offset);
+			final PacketChannelUserSnapshotResponse packetChannelUserSnapshotResponse = newMembershipPacket();
+			packetChannelUserSnapshotResponse.offset = offset;
+			packetChannelUserSnapshotResponse.users = new User[count];
+			System.arraycopy(snapshot, offset, packetChannelUserSnapshotResponse.users, 0, count);
+			offset += count;
+			packetChannelUserSnapshotResponse.more = (offset < snapshot.length);
+			serverUser.sendPacket(packetChannelUserSnapshotResponse);
+		} while (offset < snapshot.length);
+	}
+
+	private PacketChannelUserSnapshotResponse newMembershipPacket() {
+		final PacketChannelUserSnapshotResponse packetChannelUserSnapshotResponse = new PacketChannelUserSnapshotResponse();
+		packetChannelUserSnapshotResponse.channel = this;
+		packetChannelUserSnapshotResponse.epoch = epoch;
+		packetChannelUserSnapshotResponse.seq = seq;
+		return packetChannelUserSnapshotResponse;
+	}
+
+	/**
+	 * Sends a packet to every member except the given one (which may be null).
+	 * The packet is encoded once; each member gets a read-only duplicate sharing its memory.
+	 * Once every write has completed the packet buffer is released, so the packet must not be reused.
+	 */
+	public void broadcast(final Packet packet, ServerUser except) {
+		final ChannelBuffer data = ChannelBuffers.unmodifiableBuffer(packet.getData());
+		final AtomicInteger pendingWrites = new AtomicInteger(1);
+		final ChannelFutureListener releaseListener = new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture channelFuture) throws Exception {
+				if (pendingWrites.decrementAndGet() == 0) packet.release();
+			}
+		};
+
+		for (ServerUser otherUser : members.snapshot()) {
+			if (otherUser == except) continue;
+			final ChannelFuture channelFuture = otherUser.sendPacket(packet, data.duplicate());
+			if (channelFuture != null) {
+				pendingWrites.incrementAndGet();
+				channelFuture.addListener(releaseListener);
+			}
 		}
+
+		if (pendingWrites.decrementAndGet() == 0) packet.release();
+	}
+
+	/**
+	 * Broadcasts a message from a member. Text messages are added to the channel's history first; appending and
+	 * broadcasting under the history's lock keeps every member's copy of the history in sequence number order.
+	 * Until the history has been opened, that happens on the history thread.
+	 */
+	public void broadcastMessage(final PacketMessageToClient packet, final ServerUser from) {
+		if (!(packet.message instanceof TextMessage)) {
+			broadcast(packet, from);
+			return;
+		}
+		final ChannelHistory channelHistory = MessageHistory.instance.get(name);
+		MessageHistory.instance.whenOpen(channelHistory, new Runnable() {
+			@Override
+			public void run() {
+				channelHistory.append((TextMessage) packet.message);
+				broadcast(packet, from);
+			}
+		});
 	}
 
 	private void informChannelAction(ServerUser serverUser, byte action) {
@@ -73,8 +381,8 @@ public class ServerChannel extends Channel implements Serializable {
 		packetChannelAction.user = serverUser;
 		packetChannelAction.channel = this;
 		packetChannelAction.action = action;
-		for (ServerUser otherUser : users) {
-			otherUser.sendPacket(packetChannelAction);
-		}
+		packetChannelAction.epoch = epoch;
+		packetChannelAction.seq = seq;
+		broadcast(packetChannelAction, null);
 	}
 }
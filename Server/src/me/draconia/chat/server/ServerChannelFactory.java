@@ -2,19 +2,90 @@ package me.draconia.chat.server;
 
 import me.draconia.chat.types.Channel;
 import me.draconia.chat.types.ChannelFactory;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
 
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Registry of the channels in use. Looking a name up never registers anything: names that aren't registered get a
+ * detached ServerChannel (with its stored metadata, if any), which only gets registered once somebody joins it.
+ * So messages to made-up channel names leave nothing behind, and channels that have been empty for
+ * {@link ServerConfig#CHANNEL_IDLE_TIMEOUT} seconds are dropped again unless they are persistent.
+ */
 public class ServerChannelFactory extends ChannelFactory {
-	private final HashMap<String, Channel> channelsMap = new HashMap<String, Channel>();
+	private final ConcurrentHashMap<String, ServerChannel> channels = new ConcurrentHashMap<String, ServerChannel>();
+	private final ChannelStore channelStore = new ChannelStore("channels");
+
+	public ServerChannelFactory() {
+		ChannelStore.instance = channelStore;
+		try {
+			channelStore.load();
+			System.out.println("[STORE] " + channelStore.size() + " channels with stored settings");
+		} catch (Exception e) {
+			throw new Error("Failed to load the channel store", e);
+		}
+
+		final long sweepInterval = Math.max(1, ServerConfig.CHANNEL_IDLE_TIMEOUT / 4);
+		ServerTimer.instance.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) throws Exception {
+				evictIdleChannels();
+				ServerTimer.instance.newTimeout(this, sweepInterval, TimeUnit.SECONDS);
+			}
+		}, sweepInterval, TimeUnit.SECONDS);
+	}
 
 	@Override
 	public Channel createFromName(String name) {
-		Channel ret = channelsMap.get(name);
+		final ServerChannel ret = channels.get(name);
 		if (ret != null)
 			return ret;
-		ret = new ServerChannel(name);
-		channelsMap.put(name, ret);
-		return ret;
+		return load(name);
+	}
+
+	private ServerChannel load(String name) {
+		final ServerChannel serverChannel = new ServerChannel(name);
+		final ChannelStore.Entry entry = channelStore.get(name);
+		if (entry != null) {
+			serverChannel.restore(entry.password, entry.persistent);
+		}
+		return serverChannel;
+	}
+
+	/**
+	 * Returns the registered channel of that name, registering serverChannel if there is none.
+	 * Callers must be prepared for the result to be evicted before they use it, see {@link ServerChannel#joinUser}.
+	 */
+	public ServerChannel register(ServerChannel serverChannel) {
+		final ServerChannel registered = channels.get(serverChannel.name);
+		if (registered != null)
+			return registered;
+		if (serverChannel.isEvicted()) {
+			serverChannel = load(serverChannel.name);
+		}
+		final ServerChannel existing = channels.putIfAbsent(serverChannel.name, serverChannel);
+		if (existing != null)
+			return existing;
+		//Starts opening its history, so it is usually ready by the first message
+		MessageHistory.instance.get(serverChannel.name);
+		return serverChannel;
+	}
+
+	public int getChannelCount() {
+		return channels.size();
+	}
+
+	private void evictIdleChannels() {
+		final long now = System.currentTimeMillis();
+		final long idleTimeout = TimeUnit.SECONDS.toMillis(ServerConfig.CHANNEL_IDLE_TIMEOUT);
+		for (Map.Entry<String, ServerChannel> entry : channels.entrySet()) {
+			if (entry.getValue().evictIfIdle(now, idleTimeout)) {
+				channels.remove(entry.getKey(), entry.getValue());
+				MessageHistory.instance.unload(entry.getKey());
+			}
+		}
 	}
 }
@@ -0,0 +1,81 @@
+package me.draconia.chat.server;
+
+/**
+ * Server tunables. Each one can be overridden on the command line with -Ddracochat.[name]=[value].
+ */
+public class ServerConfig {
+	//Threads accepting connections, I/O worker threads (each one serves a fixed share of the connections) and threads hashing passwords for logins
+	public static int BOSS_THREADS = Integer.getInteger("dracochat.bossThreads", 1);
+	public static int WORKER_THREADS = Integer.getInteger("dracochat.workerThreads", Runtime.getRuntime().availableProcessors() * 2);
+	public static int LOGIN_THREADS = Integer.getInteger("dracochat.loginThreads", Runtime.getRuntime().availableProcessors());
+
+	//Packet handlers that keep an I/O thread busy for longer than this (ms) are logged
+	public static int SLOW_HANDLER_THRESHOLD = Integer.getInteger("dracochat.slowHandlerThreshold", 50);
+	//How often (seconds) the handler latency stats are printed. 0 disables them
+	public static int STATS_INTERVAL = Integer.getInteger("dracochat.statsInterval", 300);
+
+	//How long (ms) packets to one connection may be held back to be sent as one batch. 0 flushes at the end of the current I/O loop turn
+	public static int WRITE_BATCH_LATENCY = Integer.getInteger("dracochat.writeBatchLatency", 0);
+	public static int WRITE_BATCH_MAX_PACKETS = Integer.getInteger("dracochat.writeBatchMaxPackets", 256);
+	//Bytes the network layer may buffer for a connection before it stops taking more (high), and may take more again (low)
+	public static int WRITE_HIGH_WATERMARK = Integer.getInteger("dracochat.writeHighWatermark", 64 * 1024);
+	public static int WRITE_LOW_WATERMARK = Integer.getInteger("dracochat.writeLowWatermark", 32 * 1024);
+	//Connections with more than this many bytes waiting to be sent, or that stay above the high watermark this long (seconds), are closed
+	public static int OUTBOUND_QUEUE_LIMIT = Integer.getInteger("dracochat.outboundQueueLimit", 4 * 1024 * 1024);
+	public static int SLOW_CONSUMER_TIMEOUT = Integer.getInteger("dracochat.slowConsumerTimeout", 60);
+	//File transfers one user may be sending at once, and how long (seconds) the relay remembers a transfer that has gone quiet
+	public static int FILE_TRANSFERS_PER_USER = Integer.getInteger("dracochat.fileTransfersPerUser", 8);
+	public static int FILE_TRANSFER_IDLE_TIMEOUT = Integer.getInteger("dracochat.fileTransferIdleTimeout", 120);
+	//How long (seconds) a user whose connection dropped stays in its channels and keeps its subscriptions, waiting for it to resume its session
+	public static int SESSION_RESUME_GRACE = Integer.getInteger("dracochat.sessionResumeGrace", 30);
+	//Channel messages kept for such a user, sent when it resumes. Older ones are left to its history catch-up
+	public static int SESSION_RESUME_BUFFER = Integer.getInteger("dracochat.sessionResumeBuffer", 200);
+	//How long (ms) acknowledgements of received messages may be held back, unless half the client's window is waiting for one
+	public static int MESSAGE_ACK_DELAY = Integer.getInteger("dracochat.messageAckDelay", 100);
+
+	//How long (ms) nickname and state changes are collected before they are sent out together, see PresenceDispatcher
+	public static int PRESENCE_BATCH_INTERVAL = Integer.getInteger("dracochat.presenceBatchInterval", 100);
+	//Channels with up to this many members are kept in their members' presence watcher index, bigger ones are fanned out member by member
+	public static int PRESENCE_INDEX_CHANNEL_LIMIT = Integer.getInteger("dracochat.presenceIndexChannelLimit", 256);
+
+	public static boolean STREAM_COMPRESSION = Boolean.parseBoolean(System.getProperty("dracochat.streamCompression", "true"));
+
+	//users.log is compacted once it holds at least this many records (and several times more than are live)
+	public static int USER_STORE_COMPACT_RECORDS = Integer.getInteger("dracochat.userStoreCompactRecords", 100000);
+	//How often (ms) user changes are forced to disk. A crash loses at most this much of them
+	public static int USER_STORE_SYNC_INTERVAL = Integer.getInteger("dracochat.userStoreSyncInterval", 1000);
+	//How many recently used users are kept loaded even when nothing refers to them
+	public static int USER_CACHE_SIZE = Integer.getInteger("dracochat.userCacheSize", 10000);
+
+	//Seconds a non-persistent channel stays registered after its last member left
+	public static int CHANNEL_IDLE_TIMEOUT = Integer.getInteger("dracochat.channelIdleTimeout", 300);
+	//Users per packet when sending a channel's member list
+	public static int CHANNEL_SNAPSHOT_PAGE_SIZE = Integer.getInteger("dracochat.channelSnapshotPageSize", 500);
+	//How many membership changes each channel remembers for clients resyncing after a reconnect
+	public static int CHANNEL_MEMBERSHIP_HISTORY = Integer.getInteger("dracochat.channelMembershipHistory", 256);
+
+	//Messages of each channel kept in memory for clients catching up, and the size (bytes) and number of history log segments kept on disk per channel
+	public static int HISTORY_MEMORY_SIZE = Integer.getInteger("dracochat.historyMemorySize", 200);
+	public static int HISTORY_SEGMENT_SIZE = Integer.getInteger("dracochat.historySegmentSize", 4 * 1024 * 1024);
+	public static int HISTORY_SEGMENTS = Integer.getInteger("dracochat.historySegments", 16);
+	//Every how many records the history index has an entry
+	public static int HISTORY_INDEX_INTERVAL = Integer.getInteger("dracochat.historyIndexInterval", 64);
+	//Messages per history packet, and per history request
+	public static int HISTORY_PAGE_SIZE = Integer.getInteger("dracochat.historyPageSize", 100);
+	public static int HISTORY_MAX_REQUEST = Integer.getInteger("dracochat.historyMaxRequest", 1000);
+	//How often (ms) history is forced to disk
+	public static int HISTORY_SYNC_INTERVAL = Integer.getInteger("dracochat.historySyncInterval", 1000);
+
+	//Direct messages kept for each offline user, the number of mailbox log files users are spread over, and messages per mailbox packet
+	public static int MAILBOX_MAX_MESSAGES = Integer.getInteger("dracochat.mailboxMaxMessages", 200);
+	public static int MAILBOX_SHARDS = Integer.getInteger("dracochat.mailboxShards", 16);
+	public static int MAILBOX_PAGE_SIZE = Integer.getInteger("dracochat.mailboxPageSize", 50);
+	//Records a mailbox log has to reach, and be mostly acknowledged messages, before it is compacted
+	public static int MAILBOX_COMPACT_RECORDS = Integer.getInteger("dracochat.mailboxCompactRecords", 10000);
+	//How often (ms) mailboxes are forced to disk and checked for compaction
+	public static int MAILBOX_SYNC_INTERVAL = Integer.getInteger("dracochat.mailboxSyncInterval", 1000);
+
+	//"heap", "direct" or "none" (no pooling)
+	public static String PACKET_BUFFER_POOL = System.getProperty("dracochat.packetBufferPool", "heap");
+	public static int PACKET_BUFFER_POOL_SIZE = Integer.getInteger("dracochat.packetBufferPoolSize", 1024);
+}
@@ -0,0 +1,15 @@
+package me.draconia.chat.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs logins (user lookup and password hashing) off the I/O threads, so one slow login doesn't hold up
+ * every other connection on the same worker. Results are handed back to the connection's I/O thread.
+ */
+public class ServerLoginExecutor {
+	public static final ExecutorService instance = Executors.newFixedThreadPool(Math.max(1, ServerConfig.LOGIN_THREADS), new NamedThreadFactory("dracochat-login", true));
+
+	private ServerLoginExecutor() {
+	}
+}
@@ -8,16 +8,28 @@ import me.draconia.chat.net.packets.*;
 import me.draconia.chat.types.*;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.socket.nio.NioSocketChannel;
 import org.jboss.netty.handler.ssl.SslHandler;
 
 import java.io.IOException;
 import java.nio.channels.ClosedChannelException;
 import java.util.ArrayList;
-import java.util.Set;
 
 public class ServerPacketHandler extends PacketHandler {
+	//Set while a connection's login is being handled by the ServerLoginExecutor
+	private static final ChannelLocal<Boolean> loginPending = new ChannelLocal<Boolean>(true);
+
 	@Override
 	public void packetReceived(ChannelHandlerContext ctx, Packet packet) throws Exception {
+		final long start = System.nanoTime();
+		try {
+			handlePacket(ctx, packet);
+		} finally {
+			ServerStats.recordHandler(packet.getID(), System.nanoTime() - start, (ServerUser) ctx.getAttachment());
+		}
+	}
+
+	private void handlePacket(final ChannelHandlerContext ctx, Packet packet) throws Exception {
 		final int packetID = packet.getID();
 
 		Object attach = ctx.getAttachment();
@@ -36,7 +48,7 @@ public class ServerPacketHandler extends PacketHandler {
 				PacketPingPong packetPingPong = (PacketPingPong) packet;
 				if (packetPingPong.id > 0) {
 					packetPingPong.id = -packetPingPong.id;
-					ctx.getChannel().write(packetPingPong.getData());
+					OutboundQueue.releaseWhenWritten(OutboundQueue.get(ctx.getChannel()).write(packetPingPong.getData()), packetPingPong);
 				} else {
 					//We got a response...DEAL WITH IT HERE
 				}
@@ -46,35 +58,28 @@ public class ServerPacketHandler extends PacketHandler {
 					kickChannel(ctx, "Already logged in!");
 					return;
 				}
-				PacketLoginRequest packetLoginRequest = (PacketLoginRequest) packet;
+				final PacketLoginRequest packetLoginRequest = (PacketLoginRequest) packet;
 				if (packetLoginRequest.version != ChatLib.PROTOCOL_VERSION) {
 					kickChannel(ctx, "Wrong version!");
 					return;
 				}
-				ServerUser serverUser = (ServerUser) UserFactory.instance.getFromLogin(packetLoginRequest.username);
-				if (serverUser == null) {
-					kickChannel(ctx, "Internal error");
+				if (loginPending.setIfAbsent(ctx.getChannel(), Boolean.TRUE) != null) {
+					kickChannel(ctx, "Already logging in!");
 					return;
 				}
-				if (!serverUser.hasPassword()) {
-					serverUser.setPassword(packetLoginRequest.password);
-					loginReply(ctx, serverUser, true, "Welcome, new user :3");
-				} else if (!serverUser.checkPassword(packetLoginRequest.password)) {
-					loginReply(ctx, serverUser, false, "Wrong password!");
-					return;
-				} else {
-					loginReply(ctx, serverUser, true, "Welcome back :3");
-				}
-				final Channel oldChannel = serverUser.getChannel();
-				serverUser.disconnected(null);
-				serverUser.setChannel(ctx.getChannel());
-				if (oldChannel != null) {
-					kickChannel(oldChannel, "Logged in from a different location");
-				}
-				ctx.setAttachment(serverUser);
-				System.out.println("[LOGIN] " + serverUser.login + " joined the server!");
+				final long queuedAt = System.nanoTime();
+				ServerLoginExecutor.instance.execute(new Runnable() {
+					@Override
+					public void run() {
+						ServerStats.recordLoginWait(System.nanoTime() - queuedAt);
+						login(ctx, packetLoginRequest);
+					}
+				});
 				break;
 			case Packets.DISCONNECT:
+				if (currentUser != null) {
+					currentUser.endSession();
+				}
 				ctx.getChannel().close();
 				break;
 			case Packets.USERINFO:
@@ -84,11 +89,11 @@ public class ServerPacketHandler extends PacketHandler {
 					currentUser.unsubscribe((ServerUser) unsubscribeUser);
 				}
 
+				//Also the ones that already were, a resumed session may have missed their changes
 				ArrayList<User> newSubscriptions = new ArrayList<User>();
 				for (User subscribeUser : packetUserinfoRequest.users_subscribe) {
-					if (currentUser.subscribe((ServerUser) subscribeUser)) {
-						newSubscriptions.add(subscribeUser);
-					}
+					currentUser.subscribe((ServerUser) subscribeUser);
+					newSubscriptions.add(subscribeUser);
 				}
 
 				PacketUserinfoResponse packetUserinfoResponse = new PacketUserinfoResponse();
@@ -110,7 +115,11 @@ public class ServerPacketHandler extends PacketHandler {
 				currentUser.sendPacket(packetNickset);
 				break;
 			case Packets.MESSAGE:
-				Message message = ((PacketMessageToServer) packet).message;
+				final PacketMessageToServer packetMessageToServer = (PacketMessageToServer) packet;
+				//Resent after a reconnect, but it had arrived
+				if (!currentUser.messageReceived(packetMessageToServer.seq))
+					break;
+				Message message = packetMessageToServer.message;
 				if (message instanceof TextMessage) {
 					TextMessage textMessage = (TextMessage) message;
 					if (message.type == TextMessage.TYPE_SYSTEM || message.type == TextMessage.TYPE_SYSTEM_ERROR) {
@@ -119,7 +128,7 @@ public class ServerPacketHandler extends PacketHandler {
 					} else if (textMessage.content.charAt(0) == '/') {
 						if (message.context instanceof ServerChannel) {
 							ServerChannel serverChannel = (ServerChannel) message.context;
-							if (!serverChannel.getUsers().contains(currentUser)) {
+							if (!serverChannel.isMember(currentUser)) {
 								currentUser.sendSystemError("Cannot send command to channel #" + serverChannel.name + " (you are not in that channel)");
 							}
 						}
@@ -138,21 +147,41 @@ public class ServerPacketHandler extends PacketHandler {
 
 				if (message.context instanceof ServerChannel) {
 					ServerChannel serverChannel = (ServerChannel) message.context;
-					Set<ServerUser> channelUsers = serverChannel.getUsers();
-					if (channelUsers.contains(currentUser)) {
-						for (ServerUser user : channelUsers) {
-							if (!user.equals(currentUser)) user.sendPacket(packetMessageToClient);
-						}
+					if (serverChannel.isMember(currentUser)) {
+						serverChannel.broadcastMessage(packetMessageToClient, currentUser);
 					} else {
 						currentUser.sendSystemError("Cannot send message to channel #" + serverChannel.name + " (you are not in that channel)");
 					}
 				} else if (message.context instanceof ServerUser) {
-					boolean success = ((ServerUser) message.context).sendPacket(packetMessageToClient);
+					final ServerUser recipient = (ServerUser) message.context;
+					if (message.type == BinaryMessage.TYPE_FILE_DATA && message instanceof BinaryMessage) {
+						if (!FileRelay.instance.takeCredit(currentUser, recipient, (BinaryMessage) message)) {
+							currentUser.sendSystemError("[FILE] Dropped file data for " + recipient.login + ", it was sent before they were ready for it");
+							break;
+						}
+					} else if (message.type == BinaryMessage.TYPE_FILE_CREDIT && message instanceof BinaryMessage) {
+						FileRelay.instance.grantCredit(currentUser, recipient, (BinaryMessage) message);
+					}
+					boolean success = recipient.sendPacket(packetMessageToClient);
 					if (!success) {
+						//Text can wait for the recipient to log in, OTR only works between users who are both online
+						final boolean storable = message instanceof TextMessage && recipient.hasPassword();
+						final int stored = storable ? Mailbox.instance.store(recipient, (TextMessage) message) : MailboxShard.STORE_FAILED;
 						packetMessageToClient = new PacketMessageToClient();
 						TextMessage textMessage = new TextMessage();
-						textMessage.content = "[ERR] User not online";
 						textMessage.type = TextMessage.TYPE_SYSTEM_ERROR;
+						if (!storable) {
+							textMessage.content = "[ERR] User not online";
+						} else if (stored == MailboxShard.STORED) {
+							textMessage.content = "[INFO] User not online, they will get your message when they log in";
+							textMessage.type = TextMessage.TYPE_SYSTEM;
+						} else if (stored == MailboxShard.MAILBOX_FULL) {
+							textMessage.content = "[ERR] User not online and their mailbox is full";
+						} else if (stored == MailboxShard.TOO_LONG) {
+							textMessage.content = "[ERR] User not online and your message is too long to keep for them";
+						} else {
+							textMessage.content = "[ERR] User not online and your message could not be kept for them";
+						}
 						textMessage.context = message.context;
 						textMessage.from = User.getSYSTEM();
 						packetMessageToClient.message = textMessage;
@@ -182,10 +211,17 @@ public class ServerPacketHandler extends PacketHandler {
 				ServerChannel serverChannel = (ServerChannel) packetChannelAction.channel;
 				switch (packetChannelAction.action) {
 					case PacketChannelAction.ACTION_JOIN:
+						final ServerChannelFactory serverChannelFactory = (ServerChannelFactory) me.draconia.chat.types.ChannelFactory.instance;
+						serverChannel = serverChannelFactory.register(serverChannel);
 						if (serverChannel.checkPassword(null)) {
-							serverChannel.joinUser(currentUser);
+							//Retry if it got evicted in between
+							while (!serverChannel.joinUser(currentUser, packetChannelAction.epoch, packetChannelAction.seq)) {
+								serverChannel = serverChannelFactory.register(serverChannel);
+							}
 						} else {
 							packetChannelAction.action = PacketChannelAction.ACTION_JOIN_DECLINED;
+							packetChannelAction.epoch = 0;
+							packetChannelAction.seq = 0;
 							currentUser.sendPacket(packetChannelAction);
 						}
 						break;
@@ -194,6 +230,18 @@ public class ServerPacketHandler extends PacketHandler {
 						break;
 				}
 				break;
+			case Packets.HISTORY:
+				PacketHistoryRequest packetHistoryRequest = (PacketHistoryRequest) packet;
+				ServerChannel historyChannel = (ServerChannel) packetHistoryRequest.channel;
+				if (historyChannel.isMember(currentUser)) {
+					MessageHistory.instance.sendHistory(currentUser, historyChannel, packetHistoryRequest.sinceSeq, packetHistoryRequest.sinceTimestamp, packetHistoryRequest.limit);
+				} else {
+					currentUser.sendSystemError("Cannot get the history of channel #" + historyChannel.name + " (you are not in that channel)");
+				}
+				break;
+			case Packets.MAILBOX:
+				Mailbox.instance.ack(currentUser, ((PacketMailboxAck) packet).upToID);
+				break;
 			default:
 				kickChannel(ctx, "Invalid packet!");
 				break;
@@ -207,18 +255,115 @@ public class ServerPacketHandler extends PacketHandler {
 		e.getCause().printStackTrace();
 	}
 
+	@Override
+	public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		final OutboundQueue outboundQueue = OutboundQueue.find(ctx.getChannel());
+		if (outboundQueue != null) {
+			outboundQueue.writabilityChanged();
+		}
+		super.channelInterestChanged(ctx, e);
+	}
+
 	@Override
 	public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
 		final SslHandler sslHandler = ctx.getPipeline().get(SslHandler.class);
 		sslHandler.handshake();
 	}
 
-	private void loginReply(ChannelHandlerContext ctx, ServerUser serverUser, boolean success, String message) {
+	//Runs on the login executor: the user lookup and password hashing happen here, the rest is done back on the I/O thread
+	private void login(final ChannelHandlerContext ctx, PacketLoginRequest packetLoginRequest) {
+		final ServerUser serverUser = (ServerUser) UserFactory.instance.getFromLogin(packetLoginRequest.username);
+		if (serverUser == null) {
+			runInIoThread(ctx.getChannel(), new Runnable() {
+				@Override
+				public void run() {
+					loginPending.remove(ctx.getChannel());
+					kickChannel(ctx, "Internal error");
+				}
+			});
+			return;
+		}
+
+		final boolean success;
+		final String message;
+		final boolean resumed;
+		//Two first logins racing for the same new user must not both set the password
+		synchronized (serverUser) {
+			resumed = serverUser.checkResumeToken(packetLoginRequest.resumeToken);
+			if (resumed) {
+				//No password hashing, and the session's channels and subscriptions are kept
+				success = true;
+				message = "Welcome back :3";
+			} else if (!serverUser.hasPassword()) {
+				serverUser.setPassword(packetLoginRequest.password);
+				success = true;
+				message = "Welcome, new user :3";
+			} else if (!serverUser.checkPassword(packetLoginRequest.password)) {
+				success = false;
+				message = "Wrong password!";
+			} else {
+				success = true;
+				message = "Welcome back :3";
+			}
+		}
+		final boolean compression = success && packetLoginRequest.compression && ServerConfig.STREAM_COMPRESSION;
+		final long messageSession = packetLoginRequest.messageSession;
+
+		runInIoThread(ctx.getChannel(), new Runnable() {
+			@Override
+			public void run() {
+				completeLogin(ctx, serverUser, success, message, compression, messageSession, resumed);
+			}
+		});
+	}
+
+	//Runs on the connection's I/O thread, so the pipeline switch to stream compression can't race with its reads
+	private void completeLogin(ChannelHandlerContext ctx, ServerUser serverUser, boolean success, String message, boolean compression, long messageSession, boolean resumed) {
+		loginPending.remove(ctx.getChannel());
+		if (!ctx.getChannel().isConnected())
+			return;
+
+		loginReply(ctx, serverUser, success, message, compression, success ? serverUser.resumeMessages(messageSession) : 0, resumed);
+		if (!success)
+			return;
+		if (compression) {
+			//The reply itself goes out uncompressed
+			OutboundQueue.get(ctx.getChannel()).flushNow();
+			ChatLib.enableStreamCompression(ctx);
+		}
+		final Channel oldChannel = serverUser.getChannel();
+		if (!resumed) {
+			serverUser.disconnected(null);
+		}
+		serverUser.setChannel(ctx.getChannel());
+		if (oldChannel != null) {
+			kickChannel(oldChannel, "Logged in from a different location");
+		}
+		ctx.setAttachment(serverUser);
+		System.out.println("[LOGIN] " + serverUser.login + (resumed ? " resumed its session" : " joined the server!"));
+		Mailbox.instance.deliver(serverUser, true);
+	}
+
+	private static void runInIoThread(Channel channel, Runnable task) {
+		if (channel instanceof NioSocketChannel) {
+			((NioSocketChannel) channel).getWorker().executeInIoThread(task, true);
+		} else {
+			channel.getPipeline().execute(task);
+		}
+	}
+
+	private void loginReply(ChannelHandlerContext ctx, ServerUser serverUser, boolean success, String message, boolean compression, long lastMessageSeq, boolean resumed) {
 		PacketLoginResponse packetLoginResponse = new PacketLoginResponse();
 		packetLoginResponse.success = success;
 		packetLoginResponse.message = message;
 		packetLoginResponse.nickname = serverUser.getNickname();
-		ctx.getChannel().write(packetLoginResponse.getData());
+		packetLoginResponse.compression = compression;
+		packetLoginResponse.lastMessageSeq = lastMessageSeq;
+		if (success) {
+			packetLoginResponse.resumed = resumed;
+			packetLoginResponse.resumeToken = serverUser.newResumeToken();
+		}
+		OutboundQueue.releaseWhenWritten(OutboundQueue.get(ctx.getChannel()).write(packetLoginResponse.getData()), packetLoginResponse);
 	}
 
 	private void kickChannel(ChannelHandlerContext ctx, String message) {
@@ -228,6 +373,8 @@ public class ServerPacketHandler extends PacketHandler {
 	private void kickChannel(Channel channel, String message) {
 		PacketDisconnect packetDisconnect = new PacketDisconnect();
 		packetDisconnect.message = message;
-		channel.write(packetDisconnect.getData()).addListener(ChannelFutureListener.CLOSE);
+		final ChannelFuture channelFuture = OutboundQueue.get(channel).write(packetDisconnect.getData());
+		OutboundQueue.releaseWhenWritten(channelFuture, packetDisconnect);
+		channelFuture.addListener(ChannelFutureListener.CLOSE);
 	}
 }
@@ -0,0 +1,152 @@
+package me.draconia.chat.server;
+
+import me.draconia.chat.net.PacketBufferAllocator;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Event loop latency counters: how long packet handlers hold the I/O threads (per packet ID) and how long logins wait
+ * for the login executor, plus how much is waiting to be sent to clients (in total, and for the ones with the most) and
+ * how many slow clients had presence updates collapsed, typing states dropped or were disconnected. Handlers slower
+ * than {@link ServerConfig#SLOW_HANDLER_THRESHOLD} are logged as they happen, everything else is summed up and printed
+ * every {@link ServerConfig#STATS_INTERVAL} seconds.
+ */
+public class ServerStats {
+	private static final AtomicLongArray handlerCount = new AtomicLongArray(256);
+	private static final AtomicLongArray handlerNanos = new AtomicLongArray(256);
+	private static final AtomicLongArray handlerMaxNanos = new AtomicLongArray(256);
+
+	private static final AtomicLong loginCount = new AtomicLong(0);
+	private static final AtomicLong loginWaitNanos = new AtomicLong(0);
+	private static final AtomicLong loginMaxWaitNanos = new AtomicLong(0);
+
+	private static final AtomicLong presenceDropped = new AtomicLong(0);
+	private static final AtomicLong typingDropped = new AtomicLong(0);
+	private static final AtomicLong slowConsumers = new AtomicLong(0);
+	//Connections listed by queued bytes in the report
+	private static final int TOP_QUEUES = 5;
+
+	private ServerStats() {
+	}
+
+	public static void recordHandler(int packetID, long nanos, ServerUser serverUser) {
+		packetID &= 0xFF;
+		handlerCount.incrementAndGet(packetID);
+		handlerNanos.addAndGet(packetID, nanos);
+		updateMax(handlerMaxNanos, packetID, nanos);
+		if (nanos >= TimeUnit.MILLISECONDS.toNanos(ServerConfig.SLOW_HANDLER_THRESHOLD)) {
+			System.out.println("[STATS] Slow handler for packet ID " + packetID + " from " + (serverUser == null ? "(not logged in)" : serverUser.login) + ": " + toMillis(nanos) + "ms on " + Thread.currentThread().getName());
+		}
+	}
+
+	public static void recordLoginWait(long nanos) {
+		loginCount.incrementAndGet();
+		loginWaitNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = loginMaxWaitNanos.get())) {
+			if (loginMaxWaitNanos.compareAndSet(max, nanos))
+				break;
+		}
+	}
+
+	public static void recordPresenceDropped() {
+		presenceDropped.incrementAndGet();
+	}
+
+	public static void recordTypingDropped() {
+		typingDropped.incrementAndGet();
+	}
+
+	public static void recordSlowConsumer() {
+		slowConsumers.incrementAndGet();
+	}
+
+	private static void updateMax(AtomicLongArray array, int index, long value) {
+		long max;
+		while (value > (max = array.get(index))) {
+			if (array.compareAndSet(index, max, value))
+				break;
+		}
+	}
+
+	private static String toMillis(long nanos) {
+		return String.format("%.2f", nanos / 1000000.0);
+	}
+
+	/**
+	 * Returns the counters collected since the last report and resets them.
+	 */
+	public static String report() {
+		final StringBuilder stringBuilder = new StringBuilder("[STATS] Handlers (id: count, avg ms, max ms):");
+		for (int i = 0; i < 256; i++) {
+			final long count = handlerCount.getAndSet(i, 0);
+			if (count == 0) continue;
+			final long nanos = handlerNanos.getAndSet(i, 0);
+			final long maxNanos = handlerMaxNanos.getAndSet(i, 0);
+			stringBuilder.append(' ').append(i).append(": ").append(count).append(", ").append(toMillis(nanos / count)).append(", ").append(toMillis(maxNanos)).append(';');
+		}
+		final long logins = loginCount.getAndSet(0);
+		final long waitNanos = loginWaitNanos.getAndSet(0);
+		final long maxWaitNanos = loginMaxWaitNanos.getAndSet(0);
+		stringBuilder.append(" Logins: ").append(logins);
+		if (logins > 0) {
+			stringBuilder.append(" (queued avg ").append(toMillis(waitNanos / logins)).append("ms, max ").append(toMillis(maxWaitNanos)).append("ms)");
+		}
+		appendOutbound(stringBuilder);
+		final PacketBufferAllocator allocator = PacketBufferAllocator.instance;
+		stringBuilder.append(" Buffer pool hits/misses: ").append(allocator.getHits()).append('/').append(allocator.getMisses());
+		return stringBuilder.toString();
+	}
+
+	private static String queueName(OutboundQueue outboundQueue) {
+		final ServerUser serverUser = outboundQueue.getServerUser();
+		return (serverUser == null) ? "(not logged in)" : serverUser.login;
+	}
+
+	private static void appendOutbound(StringBuilder stringBuilder) {
+		long totalBytes = 0;
+		int connections = 0;
+		final ArrayList<OutboundQueue> top = new ArrayList<OutboundQueue>(TOP_QUEUES + 1);
+		final long[] topBytes = new long[TOP_QUEUES + 1];
+		for (OutboundQueue outboundQueue : OutboundQueue.getOpenQueues()) {
+			final long bytes = outboundQueue.getQueuedBytes();
+			connections++;
+			totalBytes += bytes;
+			if (bytes <= 0) continue;
+			//Insertion into the short list, biggest first
+			int position = top.size();
+			while (position > 0 && topBytes[position - 1] < bytes) {
+				position--;
+			}
+			if (position >= TOP_QUEUES) continue;
+			top.add(position, outboundQueue);
+			System.arraycopy(topBytes, position, topBytes, position + 1, TOP_QUEUES - position);
+			topBytes[position] = bytes;
+			if (top.size() > TOP_QUEUES) top.remove(TOP_QUEUES);
+		}
+		stringBuilder.append(" Outbound: ").append(totalBytes).append(" bytes queued for ").append(connections).append(" connections");
+		for (int i = 0; i < top.size(); i++) {
+			stringBuilder.append(i == 0 ? " (most: " : ", ").append(queueName(top.get(i))).append(' ').append(topBytes[i]);
+		}
+		if (!top.isEmpty()) stringBuilder.append(')');
+		stringBuilder.append(", presence updates collapsed: ").append(presenceDropped.getAndSet(0));
+		stringBuilder.append(", typing states dropped: ").append(typingDropped.getAndSet(0));
+		stringBuilder.append(", slow clients disconnected: ").append(slowConsumers.getAndSet(0)).append(';');
+	}
+
+	public static void start() {
+		if (ServerConfig.STATS_INTERVAL <= 0) return;
+		ServerTimer.instance.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) throws Exception {
+				System.out.println(report());
+				ServerTimer.instance.newTimeout(this, ServerConfig.STATS_INTERVAL, TimeUnit.SECONDS);
+			}
+		}, ServerConfig.STATS_INTERVAL, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,13 @@
+package me.draconia.chat.server;
+
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+public class ServerTimer {
+	public static final Timer instance = new HashedWheelTimer(5, TimeUnit.MILLISECONDS);
+
+	private ServerTimer() {
+	}
+}
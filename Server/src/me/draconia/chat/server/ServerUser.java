@@ -1,40 +1,93 @@
 package me.draconia.chat.server;
 
 import iaik.sha3.IAIKSHA3Provider;
+import me.draconia.chat.ChatLib;
 import me.draconia.chat.net.packets.Packet;
+import me.draconia.chat.net.packets.PacketMessageAck;
 import me.draconia.chat.net.packets.PacketMessageToClient;
-import me.draconia.chat.net.packets.PacketUserinfoResponse;
 import me.draconia.chat.types.GenericContext;
 import me.draconia.chat.types.TextMessage;
 import me.draconia.chat.types.User;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
 
 public class ServerUser extends User implements Serializable {
 	public static final long serialVersionUID = -1L;
 
-	private transient byte state = User.STATE_OFFLINE;
+	private static class GraceMessage {
+		final Packet packet;
+		final ChannelBuffer data;
 
-	private byte[] password;
+		GraceMessage(Packet packet, ChannelBuffer data) {
+			this.packet = packet;
+			this.data = data;
+		}
+	}
+
+	private transient volatile byte state = User.STATE_OFFLINE;
+
+	private volatile byte[] password;
 	private transient Channel channel;
+	private transient volatile OutboundQueue outboundQueue;
+	//When ServerUserFactory last put this user in its recently used ring
+	transient volatile long lastRetained;
 
 	protected transient HashSet<ServerChannel> channels = new HashSet<ServerChannel>();
 	protected transient HashSet<ServerUser> subscribed_users = new HashSet<ServerUser>();
 	protected transient HashSet<ServerUser> subscriptions = new HashSet<ServerUser>();
+	//Who gets this user's nickname and state changes, besides the members of its channels that are too big to index
+	protected transient UserSet presenceWatchers = new UserSet();
+
+	//Numbering of the messages this user sends (see PacketMessageToServer), kept across its connections. Guarded by messageSeqLock
+	private transient Object messageSeqLock = new Object();
+	private transient long messageSession;
+	private transient long lastMessageSeq;
+	private transient long ackedMessageSeq;
+	private transient boolean messageAckScheduled;
+	//Guards channel, outboundQueue and sessionGeneration, which is bumped whenever they change so stale resume grace timeouts do nothing
+	private transient Object sessionLock = new Object();
+	private transient int sessionGeneration;
+	private transient volatile byte[] resumeToken;
+	//Channel messages sent while waiting for the session to be resumed, null if it isn't. Also guarded by sessionLock
+	private transient ArrayList<GraceMessage> graceMessages;
+	private static final SecureRandom resumeTokenRandom = new SecureRandom();
+
+	private transient TimerTask messageAckTask = new TimerTask() {
+		@Override
+		public void run(Timeout timeout) throws Exception {
+			sendMessageAck();
+		}
+	};
 
 	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
 		in.defaultReadObject();
 		channels = new HashSet<ServerChannel>();
 		subscribed_users = new HashSet<ServerUser>();
 		subscriptions = new HashSet<ServerUser>();
+		presenceWatchers = new UserSet();
+		messageSeqLock = new Object();
+		sessionLock = new Object();
+		messageAckTask = new TimerTask() {
+			@Override
+			public void run(Timeout timeout) throws Exception {
+				sendMessageAck();
+			}
+		};
 		state = User.STATE_OFFLINE;
 	}
 
@@ -56,45 +109,107 @@ public class ServerUser extends User implements Serializable {
 	public void setNickname(String nickname) {
 		if (nickname.equals(this.nickname)) return;
 		super.setNickname(nickname);
+		UserStore.instance.nicknameChanged(this);
 		notifySubscribers();
 	}
 
-	public void notifySubscribers() {
-		PacketUserinfoResponse packetUserinfoResponse = new PacketUserinfoResponse();
-		packetUserinfoResponse.users = new User[]{this};
-		packetUserinfoResponse.states = new byte[]{this.state};
-		packetUserinfoResponse.nicknames = new String[]{this.nickname};
-
-		HashSet<ServerUser> reportToUsers = new HashSet<ServerUser>(subscribed_users);
-
-		synchronized (channels) {
-			for (ServerChannel serverChannel : channels) {
-				reportToUsers.addAll(serverChannel.getUsers());
-			}
-		}
+	//Only for UserStore, while loading
+	void restoreNickname(String nickname) {
+		this.nickname = nickname;
+	}
 
-		for (ServerUser subscribedUser : reportToUsers) {
-			subscribedUser.sendPacket(packetUserinfoResponse);
-		}
+	//Sent in batches, see PresenceDispatcher
+	public void notifySubscribers() {
+		PresenceDispatcher.instance.changed(this);
 	}
 
 	protected void setChannel(final Channel setChannel) {
 		setState(User.STATE_ONLINE);
-		this.channel = setChannel;
+		final OutboundQueue setOutboundQueue = OutboundQueue.get(setChannel);
+		setOutboundQueue.setServerUser(this);
+		synchronized (sessionLock) {
+			sessionGeneration++;
+			this.channel = setChannel;
+			//Before anyone else can write to the new connection, so they stay in order
+			if (graceMessages != null) {
+				for (GraceMessage graceMessage : graceMessages) {
+					setOutboundQueue.writePacket(graceMessage.packet, graceMessage.data);
+				}
+				graceMessages = null;
+			}
+			this.outboundQueue = setOutboundQueue;
+		}
 		setChannel.getCloseFuture().addListener(new ChannelFutureListener() {
 			@Override
 			public void operationComplete(ChannelFuture channelFuture) throws Exception {
-				disconnected(setChannel);
+				connectionLost(setChannel);
 			}
 		});
 	}
 
+	/**
+	 * Issues a new token that lets the next login skip the password and take over this session, see
+	 * {@link #checkResumeToken(byte[])}.
+	 */
+	public byte[] newResumeToken() {
+		final byte[] token = new byte[16];
+		resumeTokenRandom.nextBytes(token);
+		resumeToken = token;
+		return token;
+	}
+
+	/**
+	 * Whether token is the one issued on this user's last login, and its session hasn't ended since.
+	 */
+	public boolean checkResumeToken(byte[] token) {
+		final byte[] resumeToken = this.resumeToken;
+		return resumeToken != null && token != null && MessageDigest.isEqual(resumeToken, token);
+	}
+
+	//Logged out on purpose, nothing to resume
+	public void endSession() {
+		resumeToken = null;
+	}
+
+	//The connection closed. Unless the session ended, its channels and subscriptions are kept for a while in case it comes back
+	private void connectionLost(Channel lostChannel) {
+		final int generation;
+		synchronized (sessionLock) {
+			if (lostChannel != this.channel) return;
+			if (resumeToken != null && ServerConfig.SESSION_RESUME_GRACE > 0) {
+				this.channel = null;
+				this.outboundQueue = null;
+				graceMessages = new ArrayList<GraceMessage>();
+				generation = ++sessionGeneration;
+			} else {
+				generation = -1;
+			}
+		}
+		if (generation < 0) {
+			disconnected(lostChannel);
+			return;
+		}
+		ServerTimer.instance.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) throws Exception {
+				synchronized (sessionLock) {
+					//Resumed, or logged in again, in the meantime
+					if (generation != sessionGeneration) return;
+					resumeToken = null;
+				}
+				System.out.println("[LOGIN] " + login + " did not come back in time");
+				disconnected(null);
+			}
+		}, ServerConfig.SESSION_RESUME_GRACE, TimeUnit.SECONDS);
+	}
+
 	public boolean subscribe(ServerUser serverUser) {
 		final boolean ret;
 		synchronized (serverUser.subscribed_users) {
 			synchronized (subscriptions) {
 				ret = serverUser.subscribed_users.add(this);
 				subscriptions.add(serverUser);
+				if (ret) serverUser.presenceWatchers.add(this);
 			}
 		}
 		return ret;
@@ -106,6 +221,7 @@ public class ServerUser extends User implements Serializable {
 			synchronized (subscriptions) {
 				ret = serverUser.subscribed_users.remove(this);
 				subscriptions.remove(serverUser);
+				if (ret) serverUser.presenceWatchers.remove(this);
 			}
 		}
 		return ret;
@@ -127,15 +243,22 @@ public class ServerUser extends User implements Serializable {
 			}
 			subscriptions.clear();
 		}
-		if(this.channel != null) {
-			System.out.println("[LOGIN] " + this.login + " left the server!");
+		synchronized (sessionLock) {
+			if(this.channel != null) {
+				System.out.println("[LOGIN] " + this.login + " left the server!");
+			}
+			sessionGeneration++;
+			this.channel = null;
+			this.outboundQueue = null;
+			graceMessages = null;
 		}
-		this.channel = null;
 		setState(User.STATE_OFFLINE);
 	}
 
 	protected Channel getChannel() {
-		return channel;
+		synchronized (sessionLock) {
+			return channel;
+		}
 	}
 
 	private byte[] hashPassword(String password) {
@@ -151,7 +274,19 @@ public class ServerUser extends User implements Serializable {
 	}
 
 	public void setPassword(String password) {
-		this.password = hashPassword(password);
+		final byte[] newPassword = hashPassword(password);
+		if (Arrays.equals(newPassword, this.password)) return;
+		this.password = newPassword;
+		UserStore.instance.passwordChanged(this);
+	}
+
+	byte[] getPasswordHash() {
+		return password;
+	}
+
+	//Only for UserStore, while loading
+	void restorePasswordHash(byte[] password) {
+		this.password = password;
 	}
 
 	public boolean checkPassword(String password) {
@@ -164,12 +299,99 @@ public class ServerUser extends User implements Serializable {
 		return (this.password != null);
 	}
 
+	/**
+	 * Called on login with the client's message session. Returns the last message of that session received so far,
+	 * for the client to resend everything after it; a new session starts counting from scratch.
+	 */
+	public long resumeMessages(long session) {
+		synchronized (messageSeqLock) {
+			if (session != messageSession) {
+				messageSession = session;
+				lastMessageSeq = 0;
+			}
+			ackedMessageSeq = lastMessageSeq;
+			return lastMessageSeq;
+		}
+	}
+
+	/**
+	 * Records that the message numbered seq arrived, and schedules its acknowledgement. Returns false if it had
+	 * already arrived before, so it is a resend that must be dropped.
+	 */
+	public boolean messageReceived(long seq) {
+		if (seq == 0)
+			return true;
+		final boolean isNew;
+		final boolean ackNow;
+		synchronized (messageSeqLock) {
+			isNew = seq > lastMessageSeq;
+			if (isNew) {
+				lastMessageSeq = seq;
+			}
+			ackNow = lastMessageSeq - ackedMessageSeq >= ChatLib.MESSAGE_WINDOW / 2;
+			if (!ackNow && !messageAckScheduled) {
+				messageAckScheduled = true;
+				ServerTimer.instance.newTimeout(messageAckTask, Math.max(1, ServerConfig.MESSAGE_ACK_DELAY), TimeUnit.MILLISECONDS);
+			}
+		}
+		if (ackNow) {
+			sendMessageAck();
+		}
+		return isNew;
+	}
+
+	private void sendMessageAck() {
+		final PacketMessageAck packetMessageAck = new PacketMessageAck();
+		synchronized (messageSeqLock) {
+			messageAckScheduled = false;
+			if (lastMessageSeq == ackedMessageSeq)
+				return;
+			ackedMessageSeq = lastMessageSeq;
+			packetMessageAck.seq = lastMessageSeq;
+		}
+		sendPacket(packetMessageAck);
+	}
+
+	//Bytes waiting to be sent to this user, 0 if it's offline
+	public long getQueuedBytes() {
+		final OutboundQueue outboundQueue = this.outboundQueue;
+		return (outboundQueue == null) ? 0 : outboundQueue.getQueuedBytes();
+	}
+
+	/**
+	 * Returns false if the user is offline. Once the write has completed the packet buffer is released, so the packet
+	 * must not be sent again before that (ServerChannel.broadcast sends one packet to several users).
+	 */
 	public boolean sendPacket(Packet packet) {
-		if (channel == null) return false;
-		channel.write(packet.getData());
+		final ChannelFuture channelFuture = sendPacket(packet, packet.getData().duplicate());
+		if (channelFuture == null) {
+			packet.release();
+			return false;
+		}
+		OutboundQueue.releaseWhenWritten(channelFuture, packet);
 		return true;
 	}
 
+	//Data must be a duplicate of packet.getData(). Returns null if the user is offline
+	protected ChannelFuture sendPacket(Packet packet, ChannelBuffer data) {
+		final OutboundQueue outboundQueue = this.outboundQueue;
+		if (outboundQueue == null) {
+			if (packet instanceof PacketMessageToClient && ((PacketMessageToClient) packet).message.context instanceof ServerChannel) {
+				keepForResume(packet, data);
+			}
+			return null;
+		}
+		return outboundQueue.writePacket(packet, data);
+	}
+
+	//The packet's buffer goes back to the allocator once the caller is done with it, so its bytes are copied
+	private void keepForResume(Packet packet, ChannelBuffer data) {
+		synchronized (sessionLock) {
+			if (graceMessages == null || graceMessages.size() >= ServerConfig.SESSION_RESUME_BUFFER) return;
+			graceMessages.add(new GraceMessage(packet, ChannelBuffers.copiedBuffer(data)));
+		}
+	}
+
 	public boolean sendSystemMessage(String text) {
 		return sendSystemMessage(text, TextMessage.TYPE_SYSTEM);
 	}
@@ -3,82 +3,188 @@ package me.draconia.chat.server;
 import me.draconia.chat.types.User;
 import me.draconia.chat.types.UserFactory;
 
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * Users live in the {@link UserStore} and only become ServerUser objects while something uses them. Loaded users are
+ * kept weakly, so anyone still holding one (its connection, a channel, a subscriber) keeps getting the same object,
+ * and recently looked up ones are also kept strongly (about {@link ServerConfig#USER_CACHE_SIZE} of them) so users
+ * who are only idle for a moment don't have to be reloaded.
+ * Lookups of loaded users take no locks. A miss claims the login with a loader in the map before reading the store,
+ * so concurrent lookups of the same login wait for that one load instead of racing it.
+ */
 public class ServerUserFactory extends UserFactory {
-	private final HashMap<String, User> userMap;
+	private static class UserReference extends WeakReference<ServerUser> {
+		final String login;
 
-	private Thread saverThread = null;
-	private boolean runSaving = true;
+		UserReference(ServerUser serverUser, ReferenceQueue<ServerUser> queue) {
+			super(serverUser, queue);
+			this.login = serverUser.login;
+		}
+	}
+
+	private final ConcurrentHashMap<String, FutureTask<UserReference>> userMap = new ConcurrentHashMap<String, FutureTask<UserReference>>();
+	private final ReferenceQueue<ServerUser> collectedUsers = new ReferenceQueue<ServerUser>();
+	//Ring of strong references, overwritten in order. Users in use keep being put back in, see retain()
+	private final AtomicReferenceArray<ServerUser> recentUsers = new AtomicReferenceArray<ServerUser>(Math.max(1, ServerConfig.USER_CACHE_SIZE));
+	private final AtomicInteger recentUsersIndex = new AtomicInteger(0);
+
+	private final UserStore userStore = new UserStore("users");
+
+	private Thread storeThread = null;
+	private volatile boolean runStore = true;
 
 	public ServerUserFactory() {
-		HashMap<String, User> loadedMap = null;
+		UserStore.instance = userStore;
 		try {
-			ObjectInputStream objectInputStream = new ObjectInputStream(new FileInputStream("users.dat"));
-			loadedMap = (HashMap<String, User>) objectInputStream.readObject();
-			objectInputStream.close();
+			final boolean migrate = !userStore.exists() && new File("users.dat").exists();
+			userStore.open();
+			if (migrate) {
+				migrate();
+			}
+			System.out.println("[STORE] " + userStore.getUserCount() + " users registered");
 		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		if (loadedMap == null) {
-			userMap = new HashMap<String, User>();
-		} else {
-			userMap = loadedMap;
+			throw new Error("Failed to open the user store", e);
 		}
 
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
 			public void run() {
-				runSaving = false;
+				runStore = false;
+				storeThread.interrupt();
 				try {
-					saverThread.join();
+					storeThread.join();
 				} catch (InterruptedException e) {
 				}
-				save();
+				userStore.close();
 			}
 		});
 
-		saverThread = new Thread() {
+		storeThread = new Thread("dracochat-user-store") {
 			@Override
 			public void run() {
-				while (runSaving) {
+				while (runStore) {
 					try {
-						Thread.sleep(10000);
+						Thread.sleep(Math.max(10, ServerConfig.USER_STORE_SYNC_INTERVAL));
 					} catch (InterruptedException e) {
 					}
-					save();
+					userStore.sync();
+					if (runStore && userStore.needsCompaction()) {
+						try {
+							userStore.compact();
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+					}
 				}
 			}
 		};
-		saverThread.start();
+		storeThread.start();
 	}
 
-	public void save() {
-		try {
-			ObjectOutputStream objectOutputStream = new ObjectOutputStream(new FileOutputStream("users.dat"));
-			synchronized (userMap) {
-				objectOutputStream.writeObject(userMap);
+	//One-time import of the old serialized users.dat
+	private void migrate() throws Exception {
+		ObjectInputStream objectInputStream = new ObjectInputStream(new FileInputStream("users.dat"));
+		HashMap<String, User> loadedMap = (HashMap<String, User>) objectInputStream.readObject();
+		objectInputStream.close();
+		userStore.append(loadedMap.values());
+		if (!new File("users.dat").renameTo(new File("users.dat.migrated"))) {
+			System.out.println("[STORE] Could not rename users.dat after migrating it, it will be ignored from now on");
+		}
+		System.out.println("[STORE] Migrated " + loadedMap.size() + " users from users.dat");
+	}
+
+	/**
+	 * Number of users currently loaded, not counting ones that are unused but not garbage collected yet.
+	 */
+	public int getLoadedUserCount() {
+		expungeCollectedUsers();
+		return userMap.size();
+	}
+
+	private void expungeCollectedUsers() {
+		UserReference userReference;
+		while ((userReference = (UserReference) collectedUsers.poll()) != null) {
+			final FutureTask<UserReference> loader = userMap.get(userReference.login);
+			//The login may already have been loaded again
+			if (loader != null && loader.isDone() && getReference(loader) == userReference) {
+				userMap.remove(userReference.login, loader);
 			}
-			objectOutputStream.close();
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
 	}
 
+	private static UserReference getReference(FutureTask<UserReference> loader) {
+		try {
+			return loader.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while loading a user", e);
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+
+	private void retain(ServerUser serverUser) {
+		//Only every so often, so lookups of busy users don't all write to the same counter
+		final long now = System.currentTimeMillis();
+		if (now - serverUser.lastRetained < 1000)
+			return;
+		serverUser.lastRetained = now;
+		recentUsers.set((recentUsersIndex.getAndIncrement() & Integer.MAX_VALUE) % recentUsers.length(), serverUser);
+	}
+
+	private ServerUser loadOrCreate(String login) {
+		ServerUser serverUser = userStore.load(login);
+		if (serverUser == null) {
+			serverUser = new ServerUser(login);
+			serverUser.restoreNickname(login);
+			userStore.nicknameChanged(serverUser);
+		}
+		retain(serverUser);
+		return serverUser;
+	}
+
 	@Override
-	protected User createFromLogin(String login) {
-		synchronized (userMap) {
-			User ret = userMap.get(login);
-			if (ret != null)
-				return ret;
-			ret = new ServerUser(login);
-			ret.setNickname(login);
-			userMap.put(login, ret);
-			return ret;
+	protected User createFromLogin(final String login) {
+		while (true) {
+			FutureTask<UserReference> loader = userMap.get(login);
+			if (loader == null) {
+				expungeCollectedUsers();
+				final FutureTask<UserReference> newLoader = new FutureTask<UserReference>(new Callable<UserReference>() {
+					@Override
+					public UserReference call() throws Exception {
+						return new UserReference(loadOrCreate(login), collectedUsers);
+					}
+				});
+				loader = userMap.putIfAbsent(login, newLoader);
+				if (loader == null) {
+					loader = newLoader;
+					newLoader.run();
+				}
+			}
+
+			final UserReference userReference = getReference(loader);
+			final ServerUser serverUser = (userReference == null) ? null : userReference.get();
+			if (serverUser != null) {
+				retain(serverUser);
+				return serverUser;
+			}
+			//Failed to load, or nothing used it anymore and it got collected: nobody can be holding it, so load it again
+			userMap.remove(login, loader);
+			if (userReference == null) {
+				throw new RuntimeException("Failed to load user " + login);
+			}
 		}
 	}
 }
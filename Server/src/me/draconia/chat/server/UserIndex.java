@@ -0,0 +1,183 @@
+package me.draconia.chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-mapped open addressing hash table (linear probing) from the hash of a login to the offsets in users.log of
+ * that user's latest nickname and password records. It holds no logins itself: whoever probes it confirms a match by
+ * reading the login back from the log. The header records how much of the log has been indexed, so on startup only
+ * records appended after that point need to be scanned.
+ * Layout: [magic:int][capacity:int][size:int][unused:int][logLength:long][recordCount:long], then capacity slots of
+ * [hash:int (0 = empty)][nicknameOffset:long][passwordOffset:long] (-1 if there is no such record).
+ */
+public class UserIndex {
+	private static final int MAGIC = 0x44435549;
+	private static final int HEADER_SIZE = 32;
+	private static final int SLOT_SIZE = 20;
+	public static final int MIN_CAPACITY = 1 << 16;
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private int size;
+
+	private UserIndex(File file, MappedByteBuffer buffer, int capacity, int size) {
+		this.file = file;
+		this.buffer = buffer;
+		this.capacity = capacity;
+		this.size = size;
+	}
+
+	private static MappedByteBuffer map(File file, int capacity) throws IOException {
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			final long length = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+			randomAccessFile.setLength(length);
+			//The mapping stays valid after the file is closed
+			return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	public static UserIndex create(File file, int capacity) throws IOException {
+		int powerOfTwo = MIN_CAPACITY;
+		while (powerOfTwo < capacity) {
+			powerOfTwo <<= 1;
+		}
+		file.delete();
+		final MappedByteBuffer buffer = map(file, powerOfTwo);
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, powerOfTwo);
+		buffer.putInt(8, 0);
+		buffer.putLong(16, 0);
+		buffer.putLong(24, 0);
+		return new UserIndex(file, buffer, powerOfTwo, 0);
+	}
+
+	/**
+	 * Maps an existing index, or returns null if there is none or it isn't one.
+	 */
+	public static UserIndex open(File file) throws IOException {
+		if (file.length() < HEADER_SIZE)
+			return null;
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		final int magic, capacity, size;
+		try {
+			magic = randomAccessFile.readInt();
+			capacity = randomAccessFile.readInt();
+			size = randomAccessFile.readInt();
+		} finally {
+			randomAccessFile.close();
+		}
+		if (magic != MAGIC || capacity < MIN_CAPACITY || Integer.bitCount(capacity) != 1 || size < 0 || size > capacity)
+			return null;
+		if (file.length() != HEADER_SIZE + (long) capacity * SLOT_SIZE)
+			return null;
+		return new UserIndex(file, map(file, capacity), capacity, size);
+	}
+
+	public static int hash(String login) {
+		int hash = login.hashCode();
+		hash ^= (hash >>> 16);
+		return (hash == 0) ? 1 : hash;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public long getLogLength() {
+		return buffer.getLong(16);
+	}
+
+	public void setLogLength(long logLength) {
+		buffer.putLong(16, logLength);
+	}
+
+	public long getRecordCount() {
+		return buffer.getLong(24);
+	}
+
+	public void setRecordCount(long recordCount) {
+		buffer.putLong(24, recordCount);
+	}
+
+	public int firstSlot(int hash) {
+		return hash & (capacity - 1);
+	}
+
+	public int nextSlot(int slot) {
+		return (slot + 1) & (capacity - 1);
+	}
+
+	private int position(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	public boolean isEmpty(int slot) {
+		return buffer.getInt(position(slot)) == 0;
+	}
+
+	public int getHash(int slot) {
+		return buffer.getInt(position(slot));
+	}
+
+	public long getNicknameOffset(int slot) {
+		return buffer.getLong(position(slot) + 4);
+	}
+
+	public long getPasswordOffset(int slot) {
+		return buffer.getLong(position(slot) + 12);
+	}
+
+	public void set(int slot, int hash, long nicknameOffset, long passwordOffset) {
+		final int position = position(slot);
+		if (buffer.getInt(position) == 0) {
+			size++;
+			buffer.putInt(8, size);
+		}
+		buffer.putInt(position, hash);
+		buffer.putLong(position + 4, nicknameOffset);
+		buffer.putLong(position + 12, passwordOffset);
+	}
+
+	public boolean isFull() {
+		//Keep probe sequences short
+		return size * 10L >= capacity * 7L;
+	}
+
+	/**
+	 * Rehashes into a new index of twice the capacity, built in tempFile and then renamed over this one's file.
+	 * This index must not be used afterwards.
+	 */
+	public UserIndex grow(File tempFile) throws IOException {
+		final UserIndex grown = create(tempFile, capacity * 2);
+		for (int slot = 0; slot < capacity; slot++) {
+			final int hash = getHash(slot);
+			if (hash == 0) continue;
+			int newSlot = grown.firstSlot(hash);
+			while (!grown.isEmpty(newSlot)) {
+				newSlot = grown.nextSlot(newSlot);
+			}
+			grown.set(newSlot, hash, getNicknameOffset(slot), getPasswordOffset(slot));
+		}
+		grown.setLogLength(getLogLength());
+		grown.setRecordCount(getRecordCount());
+		if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file)))
+			throw new IOException("Could not replace " + file);
+		return new UserIndex(file, grown.buffer, grown.capacity, grown.size);
+	}
+
+	public void force() {
+		buffer.force();
+	}
+}
@@ -0,0 +1,99 @@
+package me.draconia.chat.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reference counted set of users, used for the members of a channel and for the users watching a user's presence
+ * (where each shared channel and each explicit subscription counts once). A user is only dropped once it has been
+ * removed as often as it was added. Adding and removing are O(1): users are kept densely in an array, and a removed
+ * user's slot is filled with the last one. Fan-out iterates {@link #snapshot()}, an immutable copy of that array which
+ * is made at most once per change, on first use, so a burst of changes with no fan-out in between costs no copies at
+ * all. Membership tests don't lock.
+ */
+public class UserSet {
+	private static final ServerUser[] EMPTY = new ServerUser[0];
+
+	private final ConcurrentHashMap<ServerUser, Integer> positions = new ConcurrentHashMap<ServerUser, Integer>();
+	//Guarded by this
+	private ServerUser[] users = new ServerUser[4];
+	private int[] counts = new int[4];
+	private int size = 0;
+	//Null when it has to be made again
+	private volatile ServerUser[] snapshot = EMPTY;
+
+	/**
+	 * Returns true if the user wasn't in the set before.
+	 */
+	public synchronized boolean add(ServerUser serverUser) {
+		final Integer position = positions.get(serverUser);
+		if (position != null) {
+			counts[position]++;
+			return false;
+		}
+		if (size == users.length) {
+			final ServerUser[] grownUsers = new ServerUser[size * 2];
+			System.arraycopy(users, 0, grownUsers, 0, size);
+			users = grownUsers;
+			final int[] grownCounts = new int[size * 2];
+			System.arraycopy(counts, 0, grownCounts, 0, size);
+			counts = grownCounts;
+		}
+		users[size] = serverUser;
+		counts[size] = 1;
+		positions.put(serverUser, size);
+		size++;
+		snapshot = null;
+		return true;
+	}
+
+	/**
+	 * Returns true if the user is no longer in the set.
+	 */
+	public synchronized boolean remove(ServerUser serverUser) {
+		final Integer position = positions.get(serverUser);
+		if (position == null)
+			return false;
+		if (--counts[position] > 0)
+			return false;
+		positions.remove(serverUser);
+		size--;
+		if (position != size) {
+			final ServerUser last = users[size];
+			users[position] = last;
+			counts[position] = counts[size];
+			positions.put(last, position);
+		}
+		users[size] = null;
+		snapshot = null;
+		return true;
+	}
+
+	public boolean contains(ServerUser serverUser) {
+		return positions.containsKey(serverUser);
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * The users at this point. Never modified, so it can be iterated (and kept) without locking.
+	 */
+	public ServerUser[] snapshot() {
+		final ServerUser[] ret = snapshot;
+		if (ret != null)
+			return ret;
+		synchronized (this) {
+			if (snapshot == null) {
+				final ServerUser[] copy = new ServerUser[size];
+				System.arraycopy(users, 0, copy, 0, size);
+				snapshot = copy;
+			}
+			return snapshot;
+		}
+	}
+}
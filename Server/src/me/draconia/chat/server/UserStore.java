@@ -0,0 +1,569 @@
+package me.draconia.chat.server;
+
+import me.draconia.chat.types.User;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only persistence for users. Every nickname or password change is appended to users.log as one small record,
+ * and {@link UserIndex} (users.index, memory-mapped) points at each user's latest records, so a user is loaded with
+ * one hash probe and two reads instead of keeping every registered user in memory. Startup only scans the part of
+ * the log the index hasn't seen yet (all of it if the index is missing or broken).
+ * Once the log holds several times more records than are live, it is compacted: the live records are copied to a
+ * new log with a new index without holding the store lock, then, under the lock, the records appended meanwhile are
+ * copied after them, users.index is deleted, and the new files are renamed into place. A crash at any point leaves
+ * either a complete log without an index, which gets rebuilt, or a matching pair.
+ * Record format: [bodyLength:int][crc32 of body:int][type:byte][login:UTF][nickname:UTF | hashLength:short hash].
+ */
+public class UserStore {
+	public static final byte RECORD_NICKNAME = 1;
+	public static final byte RECORD_PASSWORD = 2;
+
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int MAX_RECORD_LENGTH = 65536;
+
+	public static UserStore instance;
+
+	private final File logFile;
+	private final File indexFile;
+	private final File compactLogFile;
+	private final File compactIndexFile;
+	//Where an index being grown is built, apart from compactIndexFile as that can happen during a compaction
+	private final File growIndexFile;
+	//Left over by the snapshot based store, merged into the log on startup
+	private final File legacyOldLogFile;
+	private final File legacySnapshotFile;
+
+	private RandomAccessFile logRandomAccessFile = null;
+	private FileChannel logChannel = null;
+	private long logLength = 0;
+	private UserIndex index = null;
+	//Records were appended since the last sync()
+	private boolean dirty = false;
+
+	private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(64);
+	private final DataOutputStream recordStream = new DataOutputStream(recordBuffer);
+	private final CRC32 crc32 = new CRC32();
+
+	public UserStore(String name) {
+		logFile = new File(name + ".log");
+		indexFile = new File(name + ".index");
+		compactLogFile = new File(name + ".log.compact");
+		compactIndexFile = new File(name + ".index.compact");
+		growIndexFile = new File(name + ".index.grow");
+		legacyOldLogFile = new File(name + ".log.old");
+		legacySnapshotFile = new File(name + ".snapshot");
+	}
+
+	public boolean exists() {
+		return logFile.exists() || legacySnapshotFile.exists() || legacyOldLogFile.exists();
+	}
+
+	public synchronized int getUserCount() {
+		return index.getSize();
+	}
+
+	/**
+	 * Opens the log and the index, catching the index up with the log or rebuilding it.
+	 */
+	public synchronized void open() throws IOException {
+		//Leftovers of an interrupted compaction, the log they were made from is still complete
+		compactLogFile.delete();
+		compactIndexFile.delete();
+		growIndexFile.delete();
+		if (legacySnapshotFile.exists() || legacyOldLogFile.exists()) {
+			mergeLegacyFiles();
+		}
+
+		logRandomAccessFile = new RandomAccessFile(logFile, "rw");
+		logChannel = logRandomAccessFile.getChannel();
+		logLength = logChannel.size();
+
+		index = UserIndex.open(indexFile);
+		if (index != null && index.getLogLength() > logLength) {
+			System.out.println("[STORE] " + indexFile.getName() + " is ahead of " + logFile.getName() + ", rebuilding it");
+			index = null;
+		}
+		if (index == null) {
+			index = UserIndex.create(indexFile, UserIndex.MIN_CAPACITY);
+		}
+		if (index.getLogLength() < logLength) {
+			scan(index.getLogLength());
+		}
+	}
+
+	//Indexes every valid record from offset on and cuts the log off after the last one
+	private void scan(long offset) throws IOException {
+		final long validLength = readRecords(logFile, offset, this);
+		if (validLength < logLength) {
+			System.out.println("[STORE] Dropping " + (logLength - validLength) + " bytes of incomplete records at the end of " + logFile.getName());
+			//Otherwise new records would be appended after the garbage and never be read back
+			logChannel.truncate(validLength);
+			logLength = validLength;
+		}
+		index.setLogLength(logLength);
+	}
+
+	/**
+	 * Reads file from offset up to the first incomplete or corrupt record, indexing each record if indexInto isn't null.
+	 * Returns the offset of the end of the last valid record.
+	 */
+	private static long readRecords(File file, long offset, UserStore indexInto) throws IOException {
+		final FileInputStream fileInputStream = new FileInputStream(file);
+		fileInputStream.getChannel().position(offset);
+		final DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(fileInputStream));
+		final CRC32 crc32 = new CRC32();
+		try {
+			byte[] body = new byte[256];
+			while (true) {
+				final int length;
+				final int checksum;
+				try {
+					length = dataInputStream.readInt();
+					checksum = dataInputStream.readInt();
+					if (length <= 0 || length > MAX_RECORD_LENGTH)
+						break;
+					if (body.length < length)
+						body = new byte[length];
+					dataInputStream.readFully(body, 0, length);
+				} catch (EOFException e) {
+					break;
+				}
+				crc32.reset();
+				crc32.update(body, 0, length);
+				if ((int) crc32.getValue() != checksum)
+					break;
+
+				if (indexInto != null) {
+					final DataInputStream record = new DataInputStream(new ByteArrayInputStream(body, 0, length));
+					final byte type = record.readByte();
+					final String login = record.readUTF();
+					indexInto.indexRecord(login, type, offset);
+					indexInto.index.setRecordCount(indexInto.index.getRecordCount() + 1);
+				}
+				offset += RECORD_HEADER_SIZE + length;
+			}
+		} finally {
+			dataInputStream.close();
+		}
+		return offset;
+	}
+
+	private void indexRecord(String login, byte type, long offset) throws IOException {
+		final int hash = UserIndex.hash(login);
+		final int slot = findSlot(login, hash);
+		long nicknameOffset = -1;
+		long passwordOffset = -1;
+		if (!index.isEmpty(slot)) {
+			nicknameOffset = index.getNicknameOffset(slot);
+			passwordOffset = index.getPasswordOffset(slot);
+		}
+		switch (type) {
+			case RECORD_NICKNAME:
+				nicknameOffset = offset;
+				break;
+			case RECORD_PASSWORD:
+				passwordOffset = offset;
+				break;
+			default:
+				throw new IOException("Unknown user record type " + type + " at " + offset);
+		}
+		index.set(slot, hash, nicknameOffset, passwordOffset);
+		if (index.isFull()) {
+			index = index.grow(growIndexFile);
+		}
+	}
+
+	//The slot holding login, or the empty slot it would go into
+	private int findSlot(String login, int hash) throws IOException {
+		int slot = index.firstSlot(hash);
+		while (!index.isEmpty(slot)) {
+			if (index.getHash(slot) == hash) {
+				final long offset = index.getNicknameOffset(slot) >= 0 ? index.getNicknameOffset(slot) : index.getPasswordOffset(slot);
+				if (login.equals(readRecord(offset).readUTF()))
+					return slot;
+			}
+			slot = index.nextSlot(slot);
+		}
+		return slot;
+	}
+
+	//Returns the record body, positioned after the type byte
+	private DataInputStream readRecord(long offset) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		readFully(header, offset);
+		final int length = header.getInt(0);
+		final int checksum = header.getInt(4);
+		if (length <= 0 || length > MAX_RECORD_LENGTH)
+			throw new IOException("Corrupt user record at " + offset);
+		final ByteBuffer body = ByteBuffer.allocate(length);
+		readFully(body, offset + RECORD_HEADER_SIZE);
+		crc32.reset();
+		crc32.update(body.array(), 0, length);
+		if ((int) crc32.getValue() != checksum)
+			throw new IOException("Corrupt user record at " + offset);
+		final DataInputStream record = new DataInputStream(new ByteArrayInputStream(body.array(), 0, length));
+		record.readByte();
+		return record;
+	}
+
+	private void readFully(ByteBuffer byteBuffer, long offset) throws IOException {
+		if (offset < 0 || offset + byteBuffer.remaining() > logLength)
+			throw new IOException("User record at " + offset + " is past the end of " + logFile.getName());
+		readFully(logChannel, byteBuffer, offset);
+	}
+
+	private static void readFully(FileChannel fileChannel, ByteBuffer byteBuffer, long offset) throws IOException {
+		while (byteBuffer.hasRemaining()) {
+			if (fileChannel.read(byteBuffer, offset + byteBuffer.position()) < 0)
+				throw new EOFException();
+		}
+	}
+
+	/**
+	 * Loads a stored user, or returns null if there is no such user.
+	 */
+	public synchronized ServerUser load(String login) {
+		try {
+			return loadFromIndex(login);
+		} catch (IOException e) {
+			//The index points at something that isn't there (the index got written out but the log didn't before a crash)
+			System.out.println("[STORE] " + e.getMessage() + ", rebuilding " + indexFile.getName());
+			try {
+				index = UserIndex.create(indexFile, index.getCapacity());
+				scan(0);
+				return loadFromIndex(login);
+			} catch (IOException e2) {
+				throw new RuntimeException("User store is broken", e2);
+			}
+		}
+	}
+
+	private ServerUser loadFromIndex(String login) throws IOException {
+		final int slot = findSlot(login, UserIndex.hash(login));
+		if (index.isEmpty(slot))
+			return null;
+
+		final ServerUser serverUser = new ServerUser(login);
+		final long nicknameOffset = index.getNicknameOffset(slot);
+		final long passwordOffset = index.getPasswordOffset(slot);
+		if (nicknameOffset >= 0) {
+			final DataInputStream record = readRecord(nicknameOffset);
+			record.readUTF();
+			serverUser.restoreNickname(record.readUTF());
+		} else {
+			serverUser.restoreNickname(login);
+		}
+		if (passwordOffset >= 0) {
+			final DataInputStream record = readRecord(passwordOffset);
+			record.readUTF();
+			final byte[] passwordHash = new byte[record.readUnsignedShort()];
+			record.readFully(passwordHash);
+			serverUser.restorePasswordHash(passwordHash);
+		}
+		return serverUser;
+	}
+
+	public void nicknameChanged(ServerUser serverUser) {
+		final String nickname = serverUser.getNickname();
+		if (nickname == null) return;
+		synchronized (this) {
+			try {
+				recordBuffer.reset();
+				recordStream.writeByte(RECORD_NICKNAME);
+				recordStream.writeUTF(serverUser.login);
+				recordStream.writeUTF(nickname);
+				appendRecord(serverUser.login, RECORD_NICKNAME);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void passwordChanged(ServerUser serverUser) {
+		final byte[] passwordHash = serverUser.getPasswordHash();
+		if (passwordHash == null) return;
+		synchronized (this) {
+			try {
+				recordBuffer.reset();
+				recordStream.writeByte(RECORD_PASSWORD);
+				recordStream.writeUTF(serverUser.login);
+				recordStream.writeShort(passwordHash.length);
+				recordStream.write(passwordHash);
+				appendRecord(serverUser.login, RECORD_PASSWORD);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void appendRecord(String login, byte type) throws IOException {
+		if (logChannel == null)
+			throw new IOException("User store is not open, change to " + login + " lost");
+		final ByteArrayOutputStream record = new ByteArrayOutputStream(RECORD_HEADER_SIZE + recordBuffer.size());
+		writeRecord(new DataOutputStream(record), crc32, recordBuffer);
+		appendRecord(login, type, record.toByteArray());
+	}
+
+	//Appends a complete record (header included)
+	private void appendRecord(String login, byte type, byte[] record) throws IOException {
+		final ByteBuffer byteBuffer = ByteBuffer.wrap(record);
+		final long offset = logLength;
+		while (byteBuffer.hasRemaining()) {
+			logChannel.write(byteBuffer, offset + byteBuffer.position());
+		}
+		logLength += byteBuffer.capacity();
+		dirty = true;
+		indexRecord(login, type, offset);
+		index.setLogLength(logLength);
+		index.setRecordCount(index.getRecordCount() + 1);
+	}
+
+	private static void writeRecord(DataOutputStream dataOutputStream, CRC32 crc32, ByteArrayOutputStream body) throws IOException {
+		final byte[] bytes = body.toByteArray();
+		crc32.reset();
+		crc32.update(bytes, 0, bytes.length);
+		dataOutputStream.writeInt(bytes.length);
+		dataOutputStream.writeInt((int) crc32.getValue());
+		dataOutputStream.write(bytes);
+	}
+
+	/**
+	 * Forces the records appended since the last call to disk, the log before the index. The OS can write the mapped
+	 * index back at any time though, so after a crash it may still point past the end of the log; open() and load()
+	 * rebuild it when it does. The fsyncs run outside the store lock, so appends and lookups carry on meanwhile.
+	 */
+	public void sync() {
+		final FileChannel logChannel;
+		final UserIndex index;
+		synchronized (this) {
+			if (!dirty || this.logChannel == null) return;
+			dirty = false;
+			logChannel = this.logChannel;
+			index = this.index;
+		}
+		try {
+			logChannel.force(false);
+			index.force();
+		} catch (ClosedChannelException e) {
+			//Compacted in the meantime, which forces the new files itself
+		} catch (IOException e) {
+			e.printStackTrace();
+			synchronized (this) {
+				dirty = true;
+			}
+		}
+	}
+
+	public synchronized void close() {
+		if (logChannel == null) return;
+		try {
+			logChannel.force(false);
+			index.force();
+			logRandomAccessFile.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		logChannel = null;
+		logRandomAccessFile = null;
+	}
+
+	public synchronized boolean needsCompaction() {
+		//Two live records per user at most
+		return index.getRecordCount() >= Math.max(ServerConfig.USER_STORE_COMPACT_RECORDS, index.getSize() * 4L);
+	}
+
+	/**
+	 * Rewrites the log with only each user's latest records. Slots keep their position, so the new index is the old
+	 * one with the offsets replaced. Only taking the snapshot of the index and copying the records appended during
+	 * the copy hold the store lock, the bulk of the copy and its fsync don't.
+	 */
+	public void compact() throws IOException {
+		final FileChannel copiedChannel;
+		final long copiedLength;
+		final int capacity;
+		final int[] slots;
+		final int[] hashes;
+		final long[] nicknameOffsets;
+		final long[] passwordOffsets;
+		synchronized (this) {
+			if (logChannel == null) return;
+			copiedChannel = logChannel;
+			copiedLength = logLength;
+			capacity = index.getCapacity();
+			final int size = index.getSize();
+			slots = new int[size];
+			hashes = new int[size];
+			nicknameOffsets = new long[size];
+			passwordOffsets = new long[size];
+			int i = 0;
+			for (int slot = 0; slot < capacity && i < size; slot++) {
+				if (index.isEmpty(slot)) continue;
+				slots[i] = slot;
+				hashes[i] = index.getHash(slot);
+				nicknameOffsets[i] = index.getNicknameOffset(slot);
+				passwordOffsets[i] = index.getPasswordOffset(slot);
+				i++;
+			}
+		}
+
+		final UserIndex compactIndex = UserIndex.create(compactIndexFile, capacity);
+		final FileOutputStream compactOutputStream = new FileOutputStream(compactLogFile);
+		final DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(compactOutputStream));
+		long compactLength = 0;
+		long records = 0;
+		try {
+			for (int i = 0; i < slots.length; i++) {
+				long nicknameOffset = nicknameOffsets[i];
+				long passwordOffset = passwordOffsets[i];
+				if (nicknameOffset >= 0) {
+					final byte[] record = readRawRecord(copiedChannel, nicknameOffset);
+					dataOutputStream.write(record);
+					nicknameOffset = compactLength;
+					compactLength += record.length;
+					records++;
+				}
+				if (passwordOffset >= 0) {
+					final byte[] record = readRawRecord(copiedChannel, passwordOffset);
+					dataOutputStream.write(record);
+					passwordOffset = compactLength;
+					compactLength += record.length;
+					records++;
+				}
+				compactIndex.set(slots[i], hashes[i], nicknameOffset, passwordOffset);
+			}
+			dataOutputStream.flush();
+			compactOutputStream.getFD().sync();
+		} finally {
+			dataOutputStream.close();
+		}
+		compactIndex.setLogLength(compactLength);
+		compactIndex.setRecordCount(records);
+		compactIndex.force();
+
+		synchronized (this) {
+			//Closed, or rebuilt and cut short, while copying
+			if (logChannel != copiedChannel || logLength < copiedLength) {
+				compactLogFile.delete();
+				compactIndexFile.delete();
+				return;
+			}
+			final long oldLength = logLength;
+			final RandomAccessFile oldRandomAccessFile = logRandomAccessFile;
+			final UserIndex oldIndex = index;
+			final RandomAccessFile compactRandomAccessFile = new RandomAccessFile(compactLogFile, "rw");
+			try {
+				//Appended meanwhile: indexing them goes through the fields, so point those at the new files first
+				logRandomAccessFile = compactRandomAccessFile;
+				logChannel = compactRandomAccessFile.getChannel();
+				logLength = compactLength;
+				index = compactIndex;
+				long offset = copiedLength;
+				while (offset < oldLength) {
+					final byte[] record = readRawRecord(copiedChannel, offset);
+					final DataInputStream body = new DataInputStream(new ByteArrayInputStream(record, RECORD_HEADER_SIZE, record.length - RECORD_HEADER_SIZE));
+					final byte type = body.readByte();
+					appendRecord(body.readUTF(), type, record);
+					offset += record.length;
+				}
+				//Both files have to be on disk before the renames make them the store
+				logChannel.force(false);
+				index.force();
+			} catch (IOException e) {
+				compactRandomAccessFile.close();
+				logRandomAccessFile = oldRandomAccessFile;
+				logChannel = copiedChannel;
+				logLength = oldLength;
+				index = oldIndex;
+				compactLogFile.delete();
+				compactIndexFile.delete();
+				throw e;
+			}
+			compactLength = logLength;
+			oldRandomAccessFile.close();
+			compactRandomAccessFile.close();
+			logChannel = null;
+			//Without an index the log in place gets indexed from scratch on startup, whichever of the two it is
+			if (!indexFile.delete() || !replace(compactLogFile, logFile) || !replace(compactIndexFile, indexFile))
+				throw new IOException("Could not move the compacted user store into place");
+			logRandomAccessFile = new RandomAccessFile(logFile, "rw");
+			logChannel = logRandomAccessFile.getChannel();
+			logLength = compactLength;
+			dirty = false;
+			index = UserIndex.open(indexFile);
+			System.out.println("[STORE] Compacted " + logFile.getName() + " from " + oldLength + " to " + compactLength + " bytes");
+		}
+	}
+
+	//Header included
+	private static byte[] readRawRecord(FileChannel fileChannel, long offset) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		readFully(fileChannel, header, offset);
+		final int length = header.getInt(0);
+		if (length <= 0 || length > MAX_RECORD_LENGTH)
+			throw new IOException("Corrupt user record at " + offset);
+		final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+		readFully(fileChannel, record, offset);
+		return record.array();
+	}
+
+	private static boolean replace(File from, File to) {
+		//Some platforms won't rename over an existing file
+		return from.renameTo(to) || (to.delete() && from.renameTo(to));
+	}
+
+	/**
+	 * Appends the nickname and password of each of users, for importing them from elsewhere.
+	 */
+	public synchronized void append(Collection<User> users) {
+		for (User user : users) {
+			if (!(user instanceof ServerUser)) continue;
+			nicknameChanged((ServerUser) user);
+			passwordChanged((ServerUser) user);
+		}
+	}
+
+	//Records replay in order with the latest one winning, so the valid records of snapshot, old log and log, in that order, make a valid log
+	private void mergeLegacyFiles() throws IOException {
+		final FileOutputStream fileOutputStream = new FileOutputStream(compactLogFile);
+		try {
+			for (File file : new File[]{legacySnapshotFile, legacyOldLogFile, logFile}) {
+				if (!file.exists()) continue;
+				final long validLength = readRecords(file, 0, null);
+				final FileInputStream fileInputStream = new FileInputStream(file);
+				try {
+					long position = 0;
+					while (position < validLength) {
+						position += fileInputStream.getChannel().transferTo(position, validLength - position, fileOutputStream.getChannel());
+					}
+				} finally {
+					fileInputStream.close();
+				}
+			}
+			fileOutputStream.getFD().sync();
+		} finally {
+			fileOutputStream.close();
+		}
+		indexFile.delete();
+		if (!replace(compactLogFile, logFile))
+			throw new IOException("Could not replace " + logFile);
+		legacySnapshotFile.delete();
+		legacyOldLogFile.delete();
+	}
+}